@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+import co.paralleluniverse.desktop.JarRewriter;
+import co.paralleluniverse.desktop.NativeCapsuleSteps;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+
+/**
+ * Calls the package-private build steps of a {@link NativeCapsule} for the benchmarks.
+ */
+public final class NativeCapsuleStepsImpl implements NativeCapsuleSteps {
+    private final NativeCapsule nc;
+
+    public NativeCapsuleStepsImpl(Path capsule, String outBasePath) {
+        this.nc = new NativeCapsule(capsule, outBasePath);
+    }
+
+    public static final class Factory implements NativeCapsuleSteps.Factory {
+        @Override
+        public NativeCapsuleSteps open(Path capsule, String outBasePath) {
+            return new NativeCapsuleStepsImpl(capsule, outBasePath);
+        }
+    }
+
+    @Override
+    public Path buildUnixApp(Path out) throws IOException {
+        return nc.buildUnixApp(out);
+    }
+
+    @Override
+    public Path buildMacApp(Path out) throws IOException {
+        return nc.buildMacApp(out);
+    }
+
+    @Override
+    public JarRewriter makeGUICapsule() throws IOException {
+        return nc.makeGUICapsule(nc.createJar());
+    }
+
+    @Override
+    public void writeInfo(PrintWriter out) {
+        nc.writeInfo(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        nc.close();
+    }
+}
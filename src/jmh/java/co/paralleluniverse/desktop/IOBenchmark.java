@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link IOUtil} with the 1 KB copy loop it replaced, copying a file and extracting a JAR entry (as done
+ * when extracting the launch4j toolchain).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IOBenchmark {
+    @Param({"1", "64", "512"})
+    public int sizeMB;
+
+    private Path dir;
+    private Path source;
+    private Path target;
+    private ZipFile jar;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("capsule-desktop-bench-");
+        source = dir.resolve("source.bin");
+        target = dir.resolve("target.bin");
+
+        final Random random = new Random(0);
+        final byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream os = Files.newOutputStream(source)) {
+            for (int i = 0; i < sizeMB; i++) {
+                random.nextBytes(chunk);
+                os.write(chunk);
+            }
+        }
+
+        final Path jarFile = dir.resolve("source.jar");
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(jarFile))) {
+            zos.putNextEntry(new ZipEntry("bin/linux/ld"));
+            Files.copy(source, zos);
+            zos.closeEntry();
+        }
+        jar = new ZipFile(jarFile.toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jar.close();
+        IOUtil.delete(dir);
+    }
+
+    @Benchmark
+    public long copyFileLegacy() throws IOException {
+        try (InputStream is = new FileInputStream(source.toFile());
+             OutputStream os = new FileOutputStream(target.toFile())) {
+            return legacyCopy(is, os);
+        }
+    }
+
+    @Benchmark
+    public long copyFile() throws IOException {
+        return IOUtil.copy(source, target);
+    }
+
+    @Benchmark
+    public long extractLegacy() throws IOException {
+        try (InputStream is = jar.getInputStream(jar.getEntry("bin/linux/ld"));
+             OutputStream os = Files.newOutputStream(target)) {
+            return legacyCopy(is, os);
+        }
+    }
+
+    @Benchmark
+    public long extract() throws IOException {
+        try (InputStream is = jar.getInputStream(jar.getEntry("bin/linux/ld"))) {
+            return IOUtil.copy(is, target);
+        }
+    }
+
+    private static long legacyCopy(InputStream is, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[1024];
+        long count = 0;
+        for (int bytesRead; (bytesRead = is.read(buffer)) != -1;) {
+            out.write(buffer, 0, bytesRead);
+            count += bytesRead;
+        }
+        out.flush();
+        return count;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link JarRewriter#setParallelism(int) recompressing} a {@link SyntheticCapsule synthetic} capsule with
+ * too many entries to be copied as raw data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JarRewriterBenchmark {
+    private static final int ZIP64_ENTRIES = 70000;
+
+    @Param({"100", "400"})
+    public int sizeMB;
+
+    @Param({"1", "4", "32"})
+    public int parallelism;
+
+    private Path dir;
+    private Path capsule;
+    private Path out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("capsule-desktop-bench-");
+        capsule = SyntheticCapsule.create(dir.resolve("synthetic.jar"), (long) sizeMB * SyntheticCapsule.MB, ZIP64_ENTRIES);
+        out = dir.resolve("out.jar");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        IOUtil.delete(dir);
+    }
+
+    @Benchmark
+    public Path recompress() throws IOException {
+        return new JarRewriter(capsule)
+                .setParallelism(parallelism)
+                .setListAttribute("Caplets", Collections.singletonList("GUICapsule"))
+                .write(out);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Launch4JToolchain#extract(Path, Path) extracting} the launch4j toolchain into an empty cache and
+ * reusing an already populated one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class Launch4JToolchainBenchmark {
+    private static final String[] TOOLCHAIN_DIRS = {"bin", "head", "w32api"};
+
+    private Path dir;
+    private Path jar;
+    private Path warmCache;
+    private Path coldCache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("capsule-desktop-bench-");
+        jar = toolchainJar(dir.resolve("toolchain.jar"));
+        warmCache = dir.resolve("warm");
+        coldCache = dir.resolve("cold");
+        Launch4JToolchain.extract(jar, warmCache);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearColdCache() throws IOException {
+        IOUtil.delete(coldCache);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        IOUtil.delete(dir);
+    }
+
+    @Benchmark
+    public Launch4JToolchain extractCold() throws IOException {
+        return Launch4JToolchain.extract(jar, coldCache);
+    }
+
+    @Benchmark
+    public Launch4JToolchain extractCached() throws IOException {
+        return Launch4JToolchain.extract(jar, warmCache);
+    }
+
+    /**
+     * Returns the JAR bundling the toolchain, packing the resources directory into one if they're not in a JAR.
+     */
+    private static Path toolchainJar(Path target) throws IOException {
+        final URL url = Launch4JToolchain.class.getClassLoader().getResource("head/head.o");
+        if (url == null)
+            throw new IOException("The launch4j toolchain resources are not on the classpath");
+        try {
+            if ("jar".equals(url.getProtocol())) {
+                final String path = url.getPath();
+                return Paths.get(new URL(path.substring(0, path.indexOf('!'))).toURI());
+            }
+            final Path root = Paths.get(url.toURI()).getParent().getParent();
+            try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(target))) {
+                for (final String d : TOOLCHAIN_DIRS)
+                    addTree(zos, root, root.resolve(d));
+            }
+            return target;
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void addTree(ZipOutputStream zos, Path root, Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
+                for (final Path p : ds)
+                    addTree(zos, root, p);
+            }
+        } else {
+            zos.putNextEntry(new ZipEntry(root.relativize(path).toString().replace('\\', '/')));
+            Files.copy(path, (OutputStream) zos);
+            zos.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the steps of building native binaries for a {@link SyntheticCapsule synthetic} GUI capsule.
+ * <p>
+ * {@code NativeCapsule} lives in the default package, which can't be imported (and JMH doesn't allow benchmarks in
+ * it), so its build steps are called through {@link NativeCapsuleSteps}, whose default-package implementation is
+ * compiled against them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class NativeCapsuleBenchmark {
+    @Param({"1", "50", "500"})
+    public int sizeMB;
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    private Path dir;
+    private Path out;
+    private Path guiJar;
+    private NativeCapsuleSteps nativeCapsule;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("capsule-desktop-bench-");
+        final Path capsule = SyntheticCapsule.create(dir.resolve("synthetic.jar"), (long) sizeMB * SyntheticCapsule.MB, entries);
+        out = Files.createDirectory(dir.resolve("out")).resolve("synthetic");
+        guiJar = dir.resolve("gui.jar");
+
+        final Iterator<NativeCapsuleSteps.Factory> factories = ServiceLoader.load(NativeCapsuleSteps.Factory.class).iterator();
+        if (!factories.hasNext())
+            throw new IllegalStateException("No " + NativeCapsuleSteps.Factory.class.getName() + " in META-INF/services");
+        nativeCapsule = factories.next().open(capsule, out.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        nativeCapsule.close();
+        IOUtil.delete(dir);
+    }
+
+    @Benchmark
+    public Path buildUnixApp() throws IOException {
+        return nativeCapsule.buildUnixApp(out);
+    }
+
+    @Benchmark
+    public Path buildMacApp() throws IOException {
+        return nativeCapsule.buildMacApp(out);
+    }
+
+    /**
+     * Writes the GUI capsule, as done for the Windows executable.
+     */
+    @Benchmark
+    public Path makeGUICapsule() throws IOException {
+        return nativeCapsule.makeGUICapsule().write(guiJar);
+    }
+
+    @Benchmark
+    public String writeInfo() {
+        final StringWriter sw = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(sw)) {
+            nativeCapsule.writeInfo(pw);
+        }
+        return sw.toString();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+
+/**
+ * The build steps of {@code NativeCapsule} measured by {@link NativeCapsuleBenchmark}.
+ * <p>
+ * {@code NativeCapsule} lives in the default package, which can't be imported, so the steps are called through this
+ * interface, implemented in the default package by {@code NativeCapsuleStepsImpl}, and created by the {@link Factory}
+ * it registers with {@link java.util.ServiceLoader}.
+ */
+public interface NativeCapsuleSteps extends Closeable {
+    /**
+     * Creates the steps for a capsule; registered in {@code META-INF/services}.
+     */
+    interface Factory {
+        NativeCapsuleSteps open(Path capsule, String outBasePath) throws IOException;
+    }
+
+    Path buildUnixApp(Path out) throws IOException;
+
+    Path buildMacApp(Path out) throws IOException;
+
+    /**
+     * Makes the GUI capsule, as done for the Windows executable.
+     */
+    JarRewriter makeGUICapsule() throws IOException;
+
+    void writeInfo(PrintWriter out);
+}
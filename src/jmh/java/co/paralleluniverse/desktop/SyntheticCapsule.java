@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates capsules of a given size and entry count for the benchmarks.
+ * <p>
+ * The capsules contain Capsule's own classes, so that they can be loaded by {@code CapsuleLauncher}, and a number of
+ * equally sized data entries whose content is half random and half repetitive, compressing roughly like the
+ * contents of a typical application JAR.
+ */
+final class SyntheticCapsule {
+    static final int MB = 1024 * 1024;
+
+    private SyntheticCapsule() {
+    }
+
+    /**
+     * Writes a synthetic GUI capsule.
+     *
+     * @param jar     The capsule to write
+     * @param size    The approximate total size of the data entries, before compression
+     * @param entries The number of data entries
+     */
+    static Path create(Path jar, long size, int entries) throws IOException {
+        final Manifest manifest = new Manifest();
+        final Attributes attrs = manifest.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue("Main-Class", "Capsule");
+        attrs.putValue("Premain-Class", "Capsule");
+        attrs.putValue("Application-Class", "Main");
+        attrs.putValue("Application-Name", "synthetic");
+        attrs.putValue("Application-Version", "1.0");
+        attrs.putValue("GUI", "true");
+
+        final byte[] data = new byte[(int) Math.max(1, size / entries)];
+        final Random random = new Random(0);
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            addCapsuleClasses(jos);
+            for (int i = 0; i < entries; i++) {
+                fill(data, random);
+                jos.putNextEntry(new JarEntry(String.format("lib/data/entry-%06d.bin", i)));
+                jos.write(data);
+                jos.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static void fill(byte[] data, Random random) {
+        final int half = data.length / 2;
+        for (int i = 0; i < half; i++)
+            data[i] = (byte) random.nextInt();
+        for (int i = half; i < data.length; i++)
+            data[i] = (byte) ('a' + i % 16);
+    }
+
+    private static void addCapsuleClasses(JarOutputStream jos) throws IOException {
+        try (JarFile capsuleJar = new JarFile(findJar("Capsule").toFile())) {
+            for (final Enumeration<JarEntry> en = capsuleJar.entries(); en.hasMoreElements();) {
+                final JarEntry e = en.nextElement();
+                if (e.isDirectory() || e.getName().startsWith("META-INF/"))
+                    continue;
+                jos.putNextEntry(new JarEntry(e.getName()));
+                try (InputStream is = capsuleJar.getInputStream(e)) {
+                    IOUtil.copy(is, (OutputStream) jos);
+                }
+                jos.closeEntry();
+            }
+        }
+    }
+
+    private static Path findJar(String className) throws IOException {
+        try {
+            return Paths.get(Class.forName(className).getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            throw new IOException("Cannot locate the JAR containing " + className, e);
+        }
+    }
+}
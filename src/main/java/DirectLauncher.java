@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.jar.JarFile;
+
+/**
+ * The main class of Windows executables built with a launch cache. It runs the application in this JVM with the
+ * classpath, main class and system properties recorded by {@link LaunchCacheCapsule} at a previous launch, and runs
+ * the capsule instead if they are missing or stale.
+ * <p>
+ * The JVM options are set by the executable when it is built; the recorded launch is stale if it needs others.
+ */
+public final class DirectLauncher {
+    /**
+     * The system property, set by the executable, holding the key identifying its build.
+     */
+    public static final String PROP_LAUNCH_KEY = "capsule.desktop.launch.key";
+
+    private DirectLauncher() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        final Path jar = getJarFile();
+        final Properties cache = readLaunchCache(jar);
+        try {
+            if (cache != null && isValid(cache, jar))
+                launch(cache, args);
+            else
+                launchCapsule(jar, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The file the launch of the given executable is recorded in.
+     */
+    static Path getLaunchCacheFile(Path jar) {
+        String base = System.getenv("LOCALAPPDATA");
+        if (base == null)
+            base = Paths.get(System.getProperty("user.home"), "AppData", "Local").toString();
+        final String path = jar.toAbsolutePath().normalize().toString();
+        final String name = jar.getFileName().toString() + "-" + sha1(path.toLowerCase(Locale.ROOT)) + ".properties"; // Windows paths are case-insensitive
+        return Paths.get(base, "capsule-desktop", "launch", name);
+    }
+
+    private static String sha1(String s) {
+        try {
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : MessageDigest.getInstance("SHA-1").digest(s.getBytes(Charset.forName("UTF-8"))))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Properties readLaunchCache(Path jar) {
+        final Path file = getLaunchCacheFile(jar);
+        try {
+            if (!Files.isRegularFile(file) || Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(jar)) < 0)
+                return null;
+            final Properties cache = new Properties();
+            try (InputStream is = Files.newInputStream(file)) {
+                cache.load(is);
+            }
+            // the dependencies have been refreshed (e.g. by a background update) since the launch was recorded
+            final String marker = cache.getProperty("marker");
+            if (marker != null && Files.exists(Paths.get(marker))
+                    && Files.getLastModifiedTime(Paths.get(marker)).compareTo(Files.getLastModifiedTime(file)) > 0)
+                return null;
+            return cache;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isValid(Properties cache, Path jar) {
+        final String key = System.getProperty(PROP_LAUNCH_KEY);
+        if (key == null || !key.equals(cache.getProperty("key")) || cache.getProperty("main") == null || cache.getProperty("classpath") == null)
+            return false;
+
+        final Path javaHome = Paths.get(System.getProperty("java.home"));
+        final Path java = Paths.get(cache.getProperty("java", "")).getParent(); // ...\bin
+        if (java == null || !(sameFile(java.getParent(), javaHome) || sameFile(java.getParent(), javaHome.getParent())))
+            return false;
+
+        for (final String p : getClassPath(cache)) {
+            if (!Files.exists(Paths.get(p)))
+                return false;
+        }
+
+        final List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+        for (int i = 0; cache.getProperty("jvm." + i) != null; i++) {
+            if (!jvmArgs.contains(cache.getProperty("jvm." + i)))
+                return false;
+        }
+        for (final String name : cache.stringPropertyNames()) {
+            if (name.startsWith("prop.") && isStartupProperty(name.substring(5))
+                    && !cache.getProperty(name).equals(System.getProperty(name.substring(5))))
+                return false;
+        }
+        return true;
+    }
+
+    private static void launch(Properties cache, String[] args) throws Exception {
+        for (final String name : cache.stringPropertyNames()) {
+            if (name.startsWith("prop.") && !isStartupProperty(name.substring(5)))
+                System.setProperty(name.substring(5), cache.getProperty(name));
+        }
+
+        final List<URL> urls = new ArrayList<>();
+        for (final String p : getClassPath(cache))
+            urls.add(Paths.get(p).toUri().toURL());
+        final ClassLoader cl = new URLClassLoader(urls.toArray(new URL[urls.size()]), ClassLoader.getSystemClassLoader().getParent());
+        Thread.currentThread().setContextClassLoader(cl);
+
+        final List<String> appArgs = new ArrayList<>();
+        for (int i = 0; cache.getProperty("arg." + i) != null; i++)
+            appArgs.add(cache.getProperty("arg." + i));
+        appArgs.addAll(Arrays.asList(args));
+
+        final Method main = Class.forName(cache.getProperty("main"), false, cl).getMethod("main", String[].class);
+        main.invoke(null, (Object) appArgs.toArray(new String[appArgs.size()]));
+    }
+
+    private static void launchCapsule(Path jar, String[] args) throws Exception {
+        final String mainClass;
+        try (JarFile jf = new JarFile(jar.toFile())) {
+            mainClass = jf.getManifest().getMainAttributes().getValue("Main-Class");
+        }
+        Class.forName(mainClass).getMethod("main", String[].class).invoke(null, (Object) args);
+    }
+
+    private static List<String> getClassPath(Properties cache) {
+        final List<String> paths = new ArrayList<>();
+        for (final String p : cache.getProperty("classpath", "").split(File.pathSeparator)) {
+            if (!p.isEmpty())
+                paths.add(p);
+        }
+        return paths;
+    }
+
+    /**
+     * Whether a system property is read when the JVM starts, so that it can't be set by the launcher.
+     */
+    static boolean isStartupProperty(String name) {
+        return name.startsWith("java.") || name.startsWith("sun.") || name.startsWith("jdk.") || name.equals("file.encoding");
+    }
+
+    private static boolean sameFile(Path a, Path b) {
+        return a != null && b != null && a.toAbsolutePath().normalize().toString().equalsIgnoreCase(b.toAbsolutePath().normalize().toString());
+    }
+
+    private static Path getJarFile() {
+        try {
+            return Paths.get(DirectLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
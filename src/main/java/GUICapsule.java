@@ -6,12 +6,25 @@
  * http://www.eclipse.org/legal/epl-v10.html
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.swing.JOptionPane;
 
 public class GUICapsule extends Capsule {
@@ -19,6 +32,12 @@ public class GUICapsule extends Capsule {
 
     protected static final Entry<String, Boolean> ATTR_GUI = ATTRIBUTE("GUI", T_BOOL(), false, true, "Whether or not this Capsule uses a GUI");
 
+    protected static final Entry<String, Boolean> ATTR_SINGLE_INSTANCE = ATTRIBUTE("Single-Instance", T_BOOL(), false, true, "Whether only one instance of the application can run, later launches passing their arguments to it");
+
+    protected static final Entry<String, String> ATTR_SINGLE_INSTANCE_HANDLER = ATTRIBUTE("Single-Instance-Handler", T_STRING(), null, true, "The static method, as <class>.<method>, the running instance passes the String[] arguments of later launches to");
+
+    private List<String> appArgs;
+
     public GUICapsule(Capsule pred) {
         super(pred);
     }
@@ -31,6 +50,13 @@ public class GUICapsule extends Capsule {
         return getAttribute(ATTR_GUI);
     }
 
+    /**
+     * Whether this capsule enforces a single instance; Windows executables do it themselves, before starting any JVM.
+     */
+    boolean isSingleInstance() {
+        return !isWindows() && getAttribute(ATTR_SINGLE_INSTANCE);
+    }
+
     @Override
     protected void onError(Throwable t) {
         final StringBuilder sb = new StringBuilder();
@@ -49,6 +75,23 @@ public class GUICapsule extends Capsule {
         return isWindows() ? p.getParent().resolve(p.getFileName().toString().replace("java.exe", "javaw.exe")) : p;
     }
 
+    @Override
+    protected ProcessBuilder prelaunch(List<String> jvmArgs, List<String> args) {
+        // before the dependencies are resolved and the application's JVM is started
+        if (isSingleInstance()) {
+            try {
+                if (SingleInstanceAgent.forward(getInstanceDir(), args)) {
+                    log(LOG_VERBOSE, "Passed the launch to the running instance");
+                    return null; // nothing to launch
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Another instance of the application is running but can't be reached", e);
+            }
+        }
+        this.appArgs = args;
+        return super.prelaunch(jvmArgs, args);
+    }
+
     @Override
     protected Process postlaunch(Process child) {
         return null; // don't wait for child process
@@ -59,12 +102,123 @@ public class GUICapsule extends Capsule {
     @SuppressWarnings("unchecked")
     protected <T> T attribute(Entry<String, T> attr) {
         if (ATTR_JVM_ARGS == attr) {
+            final List<String> args = new ArrayList<>(super.attribute(ATTR_JVM_ARGS));
             if (hasAttribute(ATTR_SPLASH)) {
-                final List<String> args = new ArrayList<>(super.attribute(ATTR_JVM_ARGS));
-                args.add("-splash:" + getWritableAppCache().resolve(getAttribute(ATTR_SPLASH)));
-                return (T) args;
+                final Path splash = getSplashImage(getAttribute(ATTR_SPLASH));
+                if (splash != null)
+                    args.add("-splash:" + splash);
             }
+            if (isSingleInstance()) {
+                final Path agent = getInstanceAgent();
+                if (agent != null)
+                    args.add("-javaagent:" + agent + "=" + SingleInstanceAgent.getAgentOptions(getAttribute(ATTR_SINGLE_INSTANCE_HANDLER),
+                            appArgs != null ? appArgs : Collections.<String>emptyList(), getInstanceDir()));
+            }
+            return (T) args;
         }
         return super.attribute(attr);
     }
+
+    /**
+     * The directory of the running instance's lock and port files, kept out of the application cache so that resetting
+     * the cache doesn't remove them under the running instance.
+     */
+    private Path getInstanceDir() {
+        return Paths.get(System.getProperty("user.home"), ".capsule-desktop", "instances", getAppId());
+    }
+
+    /**
+     * Returns the JAR of the {@link SingleInstanceAgent}, kept in the instance directory and named after the agent
+     * class' CRC and size.
+     */
+    private Path getInstanceAgent() {
+        final String name = SingleInstanceAgent.class.getName() + ".class";
+        try {
+            final byte[] clazz;
+            try (InputStream is = GUICapsule.class.getResourceAsStream("/" + name)) {
+                if (is == null) {
+                    log(LOG_VERBOSE, name + " not found in the capsule; single instance not enforced");
+                    return null;
+                }
+                clazz = readAll(is);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(clazz);
+
+            final Path dir = getInstanceDir();
+            final Path agent = dir.resolve(String.format("agent-%08x-%d.jar", crc.getValue(), clazz.length));
+            if (Files.isRegularFile(agent))
+                return agent;
+
+            Files.createDirectories(dir);
+            final Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().putValue("Premain-Class", SingleInstanceAgent.class.getName());
+            final Path tmp = Files.createTempFile(dir, "agent-", ".tmp");
+            try {
+                try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(tmp), manifest)) {
+                    jos.putNextEntry(new ZipEntry(name));
+                    jos.write(clazz);
+                    jos.closeEntry();
+                }
+                Files.move(tmp, agent, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return agent;
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not prepare the single-instance agent; single instance not enforced: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of the splash image kept outside the capsule, so that it can be shown without extracting the
+     * capsule. The copy is named after the image entry's CRC and size, and only written again if its contents don't
+     * match them.
+     */
+    private Path getSplashImage(String name) {
+        try (ZipFile zf = new ZipFile(getJarFile().toFile())) {
+            final ZipEntry entry = zf.getEntry(name);
+            if (entry == null) {
+                log(LOG_VERBOSE, "Splash image " + name + " not found in the capsule");
+                return null;
+            }
+
+            final String suffix = name.lastIndexOf('.') > name.lastIndexOf('/') ? name.substring(name.lastIndexOf('.')) : "";
+            final Path dir = getWritableAppCache().resolve(".splash");
+            final Path image = dir.resolve(String.format("%08x-%d%s", entry.getCrc(), entry.getSize(), suffix));
+            if (Files.isRegularFile(image) && Files.size(image) == entry.getSize() && crc32(image) == entry.getCrc())
+                return image;
+
+            Files.createDirectories(dir);
+            final Path tmp = Files.createTempFile(dir, "splash-", ".tmp");
+            try {
+                try (InputStream is = zf.getInputStream(entry)) {
+                    Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(tmp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return image;
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not prepare splash image " + name + ": " + e);
+            return null;
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        for (int n; (n = is.read(buf)) > 0;)
+            baos.write(buf, 0, n);
+        return baos.toByteArray();
+    }
+
+    private static long crc32(Path file) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file)); // splash images are small
+        return crc.getValue();
+    }
 }
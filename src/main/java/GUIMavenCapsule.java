@@ -10,7 +10,14 @@ import capsule.DependencyManager;
 import capsule.GUIDependencyManager;
 import capsule.GUIListener;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -22,6 +29,20 @@ public class GUIMavenCapsule extends MavenCapsule {
 
     protected static final Map.Entry<String, String> ATTR_ICON = ATTRIBUTE("Icon", T_STRING(), null, true, "The path of the application's icon file(s), with no suffix, relative to the capsule root");
 
+    protected static final Map.Entry<String, Long> ATTR_RESOLUTION_CACHE_TTL = ATTRIBUTE("Resolution-Cache-TTL", T_LONG(), null, true, "The number of seconds for which resolved dependencies involving snapshots or version ranges are reused (default: one day)");
+
+    protected static final Map.Entry<String, Long> ATTR_PROGRESS_DELAY = ATTRIBUTE("Progress-Window-Delay", T_LONG(), GUIListener.DEFAULT_SHOW_DELAY, true, "The number of milliseconds after which a window showing the dependencies' download progress appears, if they're still being downloaded");
+
+    protected static final Map.Entry<String, Boolean> ATTR_BACKGROUND_UPDATE = ATTRIBUTE("Background-Update", T_BOOL(), false, true, "Whether dependencies should be refreshed in the background after the application is launched, for the next launch");
+
+    // Set in the background refresh process
+    private static final String PROP_BACKGROUND = "capsule.desktop.background";
+
+    // Forces a fresh dependency resolution; unlike capsule.reset, it leaves the application cache alone
+    private static final String PROP_REFRESH = "capsule.desktop.refresh";
+
+    protected static final Map.Entry<String, Long> ATTR_DOWNLOAD_THREADS = ATTRIBUTE("Download-Threads", T_LONG(), null, true, "The number of dependencies downloaded concurrently (default: Aether's)");
+
     public GUIMavenCapsule(Path jarFile) {
         super(jarFile);
     }
@@ -34,7 +55,7 @@ public class GUIMavenCapsule extends MavenCapsule {
 
     @Override
     protected ProcessBuilder prelaunch(List<String> args, List<String> jvmArgs) {
-        this.listener = new GUIListener(getAttribute(ATTR_APP_NAME), getAttribute(ATTR_ICON));
+        this.listener = new GUIListener(getAttribute(ATTR_APP_NAME), getAttribute(ATTR_ICON), isBackground() ? -1 : Math.max(0, getAttribute(ATTR_PROGRESS_DELAY)));
         try {
             return super.prelaunch(args, jvmArgs);
         } finally {
@@ -42,8 +63,111 @@ public class GUIMavenCapsule extends MavenCapsule {
         }
     }
 
+    @Override
+    protected Process postlaunch(Process child) {
+        if (child != null && !isBackground() && getAttribute(ATTR_BACKGROUND_UPDATE) && isBackgroundUpdateDue())
+            startBackgroundUpdate();
+        return super.postlaunch(child);
+    }
+
+    /**
+     * Starts a detached, low-priority process re-resolving the dependencies (in the background, without a GUI), so
+     * that updated snapshots and version ranges are in the local repository and resolution cache for the next launch.
+     */
+    private void startBackgroundUpdate() {
+        final List<String> cmd = new ArrayList<>();
+        if (isWindows())
+            cmd.addAll(Arrays.asList("cmd", "/c", "start", "\"\"", "/b", "/low"));
+        else if (Files.isExecutable(Paths.get("/usr/bin/nice")))
+            cmd.addAll(Arrays.asList("/usr/bin/nice", "-n", "19"));
+        cmd.add(getJavaExecutable().toString());
+        cmd.add("-D" + PROP_BACKGROUND + "=true");
+        cmd.add("-D" + PROP_REFRESH + "=true");
+        cmd.add("-Dcapsule.resolve=true");
+        cmd.add("-jar");
+        cmd.add(getJarFile().toString());
+
+        final File devNull = new File(isWindows() ? "NUL" : "/dev/null");
+        try {
+            new ProcessBuilder(cmd)
+                .redirectInput(ProcessBuilder.Redirect.from(devNull))
+                .redirectOutput(ProcessBuilder.Redirect.to(devNull))
+                .redirectError(ProcessBuilder.Redirect.to(devNull))
+                .start();
+        } catch (IOException e) {
+            // the dependencies will be refreshed on the next launch
+        }
+    }
+
+    /**
+     * Whether the last completed refresh of the dependencies is older than the resolution cache's TTL.
+     */
+    private boolean isBackgroundUpdateDue() {
+        final Long ttl = getAttribute(ATTR_RESOLUTION_CACHE_TTL);
+        final long interval = ttl != null ? ttl * 1000 : GUIDependencyManager.DEFAULT_RESOLUTION_CACHE_TTL;
+        final Path marker = getRefreshMarker();
+        try {
+            return !Files.exists(marker) || System.currentTimeMillis() - Files.getLastModifiedTime(marker).toMillis() >= interval;
+        } catch (IOException e) {
+            return false; // the dependencies will be refreshed on a later launch
+        }
+    }
+
+    /**
+     * Records that the dependencies have been refreshed, by the background update or a reset, which makes the launch
+     * caches recorded before stale. The background process records its own update, so one that fails or is killed is
+     * retried on the next launch.
+     */
+    private void refreshDone() {
+        final Path marker = getRefreshMarker();
+        try {
+            if (!Files.exists(marker))
+                Files.createFile(marker);
+            Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // the update will be repeated on the next launch
+        }
+    }
+
+    private Path getRefreshMarker() {
+        return getWritableAppCache().resolve(LaunchCacheCapsule.REFRESH_MARKER);
+    }
+
+    private static boolean isBackground() {
+        return Boolean.getBoolean(PROP_BACKGROUND);
+    }
+
     @Override
     protected DependencyManager createDependencyManager(Path localRepo, boolean reset, int logLevel) {
-        return new GUIDependencyManager(listener, localRepo, reset, logLevel);
+        final Long threads = getAttribute(ATTR_DOWNLOAD_THREADS);
+        if (listener == null) // resolve mode (e.g. the background update) doesn't go through prelaunch
+            listener = new GUIListener(getAttribute(ATTR_APP_NAME), getAttribute(ATTR_ICON), -1);
+        final boolean refresh = reset || Boolean.getBoolean(PROP_REFRESH);
+        final int downloadThreads = threads != null ? threads.intValue() : 0;
+        final GUIDependencyManager dm = !refresh
+            ? new GUIDependencyManager(listener, localRepo, refresh, logLevel, downloadThreads)
+            : new GUIDependencyManager(listener, localRepo, refresh, logLevel, downloadThreads) {
+                private boolean failed;
+
+                @Override
+                public List<Path> resolveDependencies(List<String> coords, String type) {
+                    final List<Path> resolved;
+                    try {
+                        resolved = super.resolveDependencies(coords, type);
+                    } catch (RuntimeException | Error e) {
+                        failed = true;
+                        throw e;
+                    }
+                    if (!failed)
+                        refreshDone();
+                    return resolved;
+                }
+            };
+        final Long ttl = getAttribute(ATTR_RESOLUTION_CACHE_TTL);
+        if (!isBackground() && getAttribute(ATTR_BACKGROUND_UPDATE))
+            dm.setResolutionCacheTTL(Long.MAX_VALUE); // launch from the cached classpath; it's refreshed in the background
+        else if (ttl != null)
+            dm.setResolutionCacheTTL(ttl * 1000);
+        return dm;
     }
 }
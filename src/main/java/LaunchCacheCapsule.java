@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Records the application's command line after it is launched, so that the native executable can later start the
+ * application directly, without a capsule JVM.
+ * <p>
+ * On Unix and Mac OS X, the command is written next to the executable as a file that the executable's shell prefix
+ * sources. The file defines {@code k} (the build's key), {@code h} (the {@code JAVA_HOME} it was recorded with),
+ * {@code v} (checking that the Java executable and the classpath still exist, and that the dependencies haven't been
+ * refreshed since) and {@code l} (exec'ing the application with the given arguments).
+ * <p>
+ * On Windows, the classpath, main class, system properties and JVM options are written to a properties file read by
+ * {@link DirectLauncher}.
+ */
+public class LaunchCacheCapsule extends Capsule {
+    protected static final Map.Entry<String, String> ATTR_LAUNCH_CACHE_KEY = ATTRIBUTE("Launch-Cache-Key", T_STRING(), null, false, "The key identifying the native executable's build in its launch cache");
+
+    /**
+     * The suffix of the launch cache, next to the executable.
+     */
+    public static final String LAUNCH_CACHE_SUFFIX = ".launch";
+
+    /**
+     * The file, in the application cache, that caplets touch when they change what the recorded launch refers to (e.g.
+     * when they refresh the dependencies); launch caches older than it are stale.
+     */
+    public static final String REFRESH_MARKER = ".dependencies-refreshed";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ProcessBuilder pb;
+    private List<String> args;
+
+    public LaunchCacheCapsule(Capsule pred) {
+        super(pred);
+    }
+
+    public LaunchCacheCapsule(Path jarFile) {
+        super(jarFile);
+    }
+
+    @Override
+    protected ProcessBuilder prelaunch(List<String> jvmArgs, List<String> args) {
+        this.args = args;
+        return this.pb = super.prelaunch(jvmArgs, args);
+    }
+
+    @Override
+    protected Process postlaunch(Process child) {
+        if (child != null && pb != null && hasAttribute(ATTR_LAUNCH_CACHE_KEY))
+            writeLaunchCache();
+        return super.postlaunch(child);
+    }
+
+    private void writeLaunchCache() {
+        final List<String> command = pb.command();
+        final int n = command.size() - (args != null ? args.size() : 0);
+        if (pb.directory() != null || n < 1 || !command.subList(n, command.size()).equals(args != null ? args : new ArrayList<String>())) {
+            log(LOG_VERBOSE, "The launch command can't be cached");
+            deleteLaunchCache(isWindows() ? DirectLauncher.getLaunchCacheFile(getJarFile()) : getUnixLaunchCacheFile());
+            return;
+        }
+
+        if (isWindows()) {
+            writeWindowsLaunchCache(command.subList(0, n));
+            return;
+        }
+
+        final Path cache = getUnixLaunchCacheFile();
+        try {
+            final Path tmp = Files.createTempFile(cache.getParent(), ".launch-", ".tmp");
+            try {
+                try (Writer w = Files.newBufferedWriter(tmp, UTF8)) {
+                    w.write("# The launch command cached by " + LaunchCacheCapsule.class.getSimpleName() + "; it is ignored once stale\n");
+                    w.write("k=" + quote(getAttribute(ATTR_LAUNCH_CACHE_KEY)) + "\n");
+                    final String javaHome = System.getenv("JAVA_HOME");
+                    w.write("h=" + quote(javaHome != null ? javaHome : "") + "\n");
+
+                    w.write("v() { [ -x " + quote(command.get(0)) + " ]");
+                    for (final String p : getClassPath(command.subList(0, n)))
+                        w.write(" && [ -e " + quote(p) + " ]");
+                    final Path marker = getRefreshMarker();
+                    if (marker != null)
+                        w.write(" && [ ! " + quote(marker.toString()) + " -nt \"$c\" ]");
+                    w.write("; }\n");
+
+                    w.write("l() {\n");
+                    for (final Map.Entry<String, String> e : pb.environment().entrySet()) {
+                        if (!e.getValue().equals(System.getenv(e.getKey())) && e.getKey().matches("[A-Za-z_][A-Za-z0-9_]*"))
+                            w.write("\texport " + e.getKey() + "=" + quote(e.getValue()) + "\n");
+                    }
+                    w.write("\texec");
+                    for (final String a : command.subList(0, n))
+                        w.write(" " + quote(a));
+                    w.write(" \"$@\"\n}\n");
+                }
+                Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log(LOG_VERBOSE, "Cached the launch command in " + cache);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not write the launch cache " + cache + ": " + e);
+        }
+    }
+
+    private void writeWindowsLaunchCache(List<String> command) {
+        final Path file = DirectLauncher.getLaunchCacheFile(getJarFile());
+        final Properties cache = new Properties();
+        cache.setProperty("key", getAttribute(ATTR_LAUNCH_CACHE_KEY));
+        cache.setProperty("java", command.get(0));
+        final Path marker = getRefreshMarker();
+        if (marker != null)
+            cache.setProperty("marker", marker.toString());
+        int i = 1;
+        for (int jvm = 0; i < command.size() && command.get(i).startsWith("-"); i++) {
+            final String a = command.get(i);
+            if (("-cp".equals(a) || "-classpath".equals(a)) && i + 1 < command.size())
+                cache.setProperty("classpath", command.get(++i));
+            else if (a.startsWith("-D")) {
+                final int eq = a.indexOf('=');
+                cache.setProperty("prop." + (eq > 0 ? a.substring(2, eq) : a.substring(2)), eq > 0 ? a.substring(eq + 1) : "");
+            } else if ("-jar".equals(a)) {
+                log(LOG_VERBOSE, "The launch command can't be cached: the application is launched with -jar");
+                deleteLaunchCache(file);
+                return;
+            } else if (!a.startsWith("-splash:") // the splash screen is only shown when going through the capsule
+                    && !isCDSOption(a)) // the executable's JVM uses its own archive
+                cache.setProperty("jvm." + jvm++, a);
+        }
+        if (i >= command.size() || cache.getProperty("classpath") == null) {
+            log(LOG_VERBOSE, "The launch command can't be cached: no classpath or main class");
+            deleteLaunchCache(file);
+            return;
+        }
+        cache.setProperty("main", command.get(i++));
+        for (int arg = 0; i < command.size(); i++, arg++)
+            cache.setProperty("arg." + arg, command.get(i));
+        for (final Map.Entry<String, String> e : pb.environment().entrySet()) {
+            if (!e.getValue().equals(System.getenv(e.getKey())) && !e.getKey().startsWith("CAPSULE_")) {
+                log(LOG_VERBOSE, "The launch command can't be cached: it sets the environment variable " + e.getKey());
+                deleteLaunchCache(file);
+                return;
+            }
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            final Path tmp = Files.createTempFile(file.getParent(), ".launch-", ".tmp");
+            try {
+                try (OutputStream os = Files.newOutputStream(tmp)) {
+                    cache.store(os, "The launch command cached by " + LaunchCacheCapsule.class.getSimpleName());
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log(LOG_VERBOSE, "Cached the launch command in " + file);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not write the launch cache " + file + ": " + e);
+        }
+    }
+
+    private Path getUnixLaunchCacheFile() {
+        return getJarFile().toAbsolutePath().resolveSibling(getJarFile().getFileName() + LAUNCH_CACHE_SUFFIX);
+    }
+
+    // A cache recorded by an earlier launch must not outlive a launch that can't be cached (e.g. after a reset)
+    private void deleteLaunchCache(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not delete the launch cache " + file + ": " + e);
+        }
+    }
+
+    private Path getRefreshMarker() {
+        try {
+            return getWritableAppCache().resolve(REFRESH_MARKER);
+        } catch (RuntimeException e) {
+            return null; // no application cache, so nothing refreshes it
+        }
+    }
+
+    private static boolean isCDSOption(String a) {
+        return a.equals("-XX:+IgnoreUnrecognizedVMOptions") || a.equals("-XX:+AutoCreateSharedArchive") || a.startsWith("-XX:SharedArchiveFile=");
+    }
+
+    private static List<String> getClassPath(List<String> command) {
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < command.size() - 1; i++) {
+            if ("-cp".equals(command.get(i)) || "-classpath".equals(command.get(i))) {
+                for (final String p : command.get(i + 1).split(File.pathSeparator)) {
+                    if (!p.isEmpty())
+                        paths.add(p);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+}
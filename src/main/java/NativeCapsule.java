@@ -9,10 +9,20 @@
 import capsule.GUIListener;
 import ch.qos.logback.classic.Level;
 import co.paralleluniverse.capsule.*;
+import co.paralleluniverse.desktop.BuildMetrics;
+import co.paralleluniverse.desktop.ClassDataSharing;
+import co.paralleluniverse.desktop.DependencyBundler;
+import co.paralleluniverse.desktop.IOUtil;
+import co.paralleluniverse.desktop.JarRewriter;
+import co.paralleluniverse.desktop.Launch4JToolchain;
+import co.paralleluniverse.desktop.ResourceResolver;
+import co.paralleluniverse.desktop.RuntimeImage;
 import net.sf.launch4j.Builder;
 import net.sf.launch4j.Log;
 import net.sf.launch4j.config.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,11 +30,23 @@ import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.charset.Charset;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -40,11 +62,14 @@ import static java.util.Arrays.*;
  * @author pron
  * @author circlespainter
  */
-public class NativeCapsule {
+public class NativeCapsule implements Closeable {
 
 	protected static final String ATTR_GUI = "GUI";
 	protected static final String ATTR_ICON = "Icon";
 	protected static final String ATTR_SINGLE_INSTANCE = "Single-Instance";
+	protected static final String ATTR_SPLASH = "Splash-Image";
+	protected static final String ATTR_JAVA_SPLASH = "SplashScreen-Image";
+	protected static final String ATTR_LAUNCH_CACHE_KEY = "Launch-Cache-Key";
 
 	protected static final String ATTR_IMPLEMENTATION_VENDOR = "Implementation-Vendor";
 
@@ -52,30 +77,71 @@ public class NativeCapsule {
 	protected static final String ATTR_COPYRIGHT = "Copyright";
 	protected static final String ATTR_INTERNAL_NAME = "Internal-Name";
 
+	private static final String ATTR_DEPENDENCIES = "Dependencies";
+	private static final String ATTR_APPLICATION = "Application";
+	private static final String ATTR_RUNTIME_MODULES = "Runtime-Modules";
+	// the runtime modules given to dependencies that are resolved when launched and so can't be analyzed
+	private static final List<String> DEFAULT_DEPENDENCY_MODULES = Collections.singletonList("java.se");
+	private static final String ATTR_REPOSITORIES = "Repositories";
+	private static final String ATTR_ALLOW_SNAPSHOTS = "Allow-Snapshots";
+	private static final String ATTR_APP_CLASS_PATH = "App-Class-Path";
+	private static final String ATTR_EXTRACT = "Extract-Capsule";
+
 	private static final String GUI_CAPSULE_NAME = "GUICapsule";
 	private static final String MAVEN_CAPSULE_NAME = "MavenCapsule";
 	private static final String GUI_MAVEN_CAPSULE_NAME = "GUIMavenCapsule";
 
+	private static final String PLATFORM_CURRENT = "CURRENT";
+
 	private static Logger log = LoggerFactory.getLogger(NativeCapsule.class);
 
-	private static List<Path> tmpFiles = new ArrayList<>();
-	private static Path inCapsulePath;
-	private static String outBasePath;
-	private static co.paralleluniverse.capsule.Capsule inCapsule;
-	private static boolean buildMac, buildUnix, buildWindows;
+	// launch4j keeps its configuration in a singleton and reads its directories from system properties
+	private static final Object LAUNCH4J_LOCK = new Object();
+
+	private static String toolHash;
+
+	// The launch4j toolchain is shared by all builds; guarded by LAUNCH4J_LOCK
+	private static Launch4JToolchain launch4jToolchain;
+
+	private final List<Path> tmpFiles = Collections.synchronizedList(new ArrayList<Path>());
+	private final Path inCapsulePath;
+	private final String outBasePath;
+	private final co.paralleluniverse.capsule.Capsule inCapsule;
+	private final ResourceResolver resources;
+	private final Descriptor desc;
+	private final BuildMetrics metrics;
+	private boolean incremental;
+	private boolean bundleDependencies;
+	private boolean cds;
+	private boolean execCache;
+	private Map<String, Path> runtimeJmods;
+	private Set<String> runtimeModules;
+	private String inCapsuleHash;
+	private Map<String, Path> bundledDependencies;
 
 	public static void main(String[] args) throws IOException {
 		final OptionParser parser = new OptionParser();
-		final OptionSpec<String> c = parser.acceptsAll(asList("c", "capsule")).withRequiredArg().ofType(String.class).describedAs("A single capsule pathname to build native binaries for");
-		final OptionSpec<String> o = parser.acceptsAll(asList("o", "output")).withRequiredArg().ofType(String.class).describedAs("The base output pathname of built binaries (default = the capsule pathname)");
+		final OptionSpec<String> c = parser.acceptsAll(asList("c", "capsule")).withRequiredArg().ofType(String.class).describedAs("A capsule pathname to build native binaries for (can be repeated)");
+		final OptionSpec<String> b = parser.acceptsAll(asList("b", "batch")).withRequiredArg().ofType(String.class).describedAs("A file listing capsule pathnames to build native binaries for, one per line");
+		final OptionSpec<String> o = parser.acceptsAll(asList("o", "output")).withRequiredArg().ofType(String.class).describedAs("The base output pathname of built binaries (default = the capsule pathname); the output directory when building more than one capsule");
+		final OptionSpec<Integer> j = parser.acceptsAll(asList("j", "jobs")).withRequiredArg().ofType(Integer.class).describedAs("The number of capsules built concurrently (default = the number of cores)");
 		final OptionSpec<String> l = parser.acceptsAll(asList("l", "loglevel")).withRequiredArg().ofType(String.class).describedAs("Log level (default = INFO)");
+		final OptionSpec<String> jmodsOpt = parser.acceptsAll(asList("runtime-jmods")).withRequiredArg().ofType(String.class).describedAs("<platform>=<the jmods directory of a JDK for the platform> the runtime image of the platform is linked from (can be repeated; default = this JDK's for the current platform)");
+		final OptionSpec<String> metricsOpt = parser.acceptsAll(asList("metrics")).withRequiredArg().ofType(String.class).describedAs("A file the build phases' timing and I/O metrics will be written to, as JSON");
 		parser.acceptsAll(asList("m", "macosx"), "Build Mac OS X binary");
 		parser.acceptsAll(asList("u", "unix"), "Build Unix binary");
 		parser.acceptsAll(asList("w", "windows"), "Build Windows binary");
+		parser.acceptsAll(asList("p", "parallel"), "Build the requested platforms concurrently");
+		parser.acceptsAll(asList("i", "incremental"), "Skip the binaries that are up to date with the capsule");
+		parser.acceptsAll(asList("d", "bundle-dependencies"), "Resolve the capsule's Maven dependencies now and embed them in the binaries");
+		parser.acceptsAll(asList("e", "exec-cache"), "Make the binaries cache the application's command line when first launched, and start the application directly afterwards");
+		parser.acceptsAll(asList("r", "runtime"), "Bundle a Java runtime image with only the modules the capsule uses (needs JDK 16 or later)");
+		parser.acceptsAll(asList("s", "cds"), "Make the binaries use a class-data-sharing archive (Java 19 or later), trained now for the Unix and Mac OS X binaries");
 		parser.acceptsAll(asList("h", "?", "help"), "Show help").forHelp();
 		final OptionSet options = parser.parse(args);
 
-		if (!options.has(c) || options.valuesOf(c).size() != 1 || options.valuesOf(o).size() > 1 || options.valuesOf(l).size() > 1) {
+		if ((!options.has(c) && !options.has(b)) || options.valuesOf(o).size() > 1 || options.valuesOf(j).size() > 1 || options.valuesOf(l).size() > 1
+			|| options.valuesOf(metricsOpt).size() > 1 || (options.has(j) && options.valueOf(j) < 1)) {
 			log.error("Command-line validation failed");
 			parser.printHelpOn(System.err);
 			System.exit(-1);
@@ -84,27 +150,508 @@ public class NativeCapsule {
 		if (options.has(l))
 			((ch.qos.logback.classic.Logger)LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.toLevel(options.valueOf(l), Level.INFO));
 
-		inCapsulePath = Paths.get(options.valueOf(c));
+		final List<String> platforms = new ArrayList<>();
+		if (options.has("m") || options.has("macosx"))
+			platforms.add(Platform.OS_MACOS);
+		if (options.has("u") || options.has("unix"))
+			platforms.add(Platform.OS_UNIX);
+		if (options.has("w") || options.has("windows"))
+			platforms.add(Platform.OS_WINDOWS);
+		final boolean parallel = options.has("p") || options.has("parallel");
+		final boolean incremental = options.has("i") || options.has("incremental");
+		final boolean bundle = options.has("d") || options.has("bundle-dependencies");
+		final boolean cds = options.has("s") || options.has("cds");
+		final boolean execCache = options.has("e") || options.has("exec-cache");
+		final String out = options.valuesOf(o).size() == 1 ? options.valueOf(o) : null;
+
+		Map<String, Path> runtimeJmods = null;
+		if (options.has("r") || options.has("runtime")) {
+			runtimeJmods = new HashMap<>();
+			if (RuntimeImage.getDefaultJmods() != null)
+				runtimeJmods.put(getHostPlatform(), RuntimeImage.getDefaultJmods());
+			for (final String jm : options.valuesOf(jmodsOpt)) {
+				final int eq = jm.indexOf('=');
+				final String platform = eq > 0 ? jm.substring(0, eq) : null;
+				if (!Platform.OS_MACOS.equals(platform) && !Platform.OS_UNIX.equals(platform) && !Platform.OS_WINDOWS.equals(platform)) {
+					log.error("Invalid runtime jmods {}: expected <{}|{}|{}>=<directory>", jm, Platform.OS_MACOS, Platform.OS_UNIX, Platform.OS_WINDOWS);
+					System.exit(-1);
+				}
+				runtimeJmods.put(platform, Paths.get(jm.substring(eq + 1)));
+			}
+		}
+
+		final List<Path> capsules = new ArrayList<>();
+		for (final String p : options.valuesOf(c))
+			capsules.add(Paths.get(p));
+		for (final String p : options.valuesOf(b))
+			capsules.addAll(readBatchFile(Paths.get(p)));
+
+		final BuildMetrics metrics = new BuildMetrics();
+		boolean success = true;
+		try {
+			if (capsules.size() == 1 && !options.has(b)) {
+				try (NativeCapsule nc = new NativeCapsule(capsules.get(0), out, metrics).setIncremental(incremental).setBundleDependencies(bundle).setCDS(cds).setExecCache(execCache).setRuntime(runtimeJmods)) {
+					nc.buildNative(platforms, parallel);
+				}
+			} else {
+				final int jobs = options.has(j) ? options.valueOf(j) : Runtime.getRuntime().availableProcessors();
+				success = buildBatch(capsules, out, platforms, parallel, incremental, bundle, cds, execCache, runtimeJmods, jobs, metrics);
+			}
+		} catch (IllegalArgumentException e) {
+			log.error(e.getMessage());
+			System.exit(-1);
+		} finally {
+			if (options.has(metricsOpt))
+				metrics.writeJson(Paths.get(options.valueOf(metricsOpt)));
+		}
+		if (!success)
+			System.exit(1);
+	}
+
+	private static List<Path> readBatchFile(Path file) throws IOException {
+		log.debug("Reading capsule list from {}", file.toAbsolutePath().normalize().toString());
+		final Path base = file.toAbsolutePath().getParent();
+		final List<Path> capsules = new ArrayList<>();
+		for (String line : Files.readAllLines(file, Charset.forName("UTF-8"))) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#"))
+				capsules.add(base.resolve(line));
+		}
+		return capsules;
+	}
+
+	/**
+	 * Builds the native binaries of several capsules in this process, with at most {@code jobs} capsules being built
+	 * at the same time. The launch4j toolchain is shared by all the builds.
+	 *
+	 * @param capsules  The input capsules
+	 * @param outDir    The directory the binaries will be written to, or {@code null} for each capsule's own directory
+	 * @param platforms The platforms to build for; if empty the current platform will be used
+	 * @param parallel  Whether each capsule's platforms should be built concurrently
+	 * @param incremental Whether binaries that are up to date should be skipped
+	 * @param bundle    Whether the capsules' Maven dependencies should be embedded in the binaries
+	 * @param cds       Whether the binaries should use class-data-sharing archives
+	 * @param execCache Whether the binaries should cache the application's command line
+	 * @param runtimeJmods The jmods directories runtime images are linked from, by platform, or {@code null} for none
+	 * @param jobs      The maximum number of capsules built concurrently
+	 * @param metrics   The metrics the build phases are recorded into
+	 * @return {@code true} if all the capsules have been built successfully
+	 * @throws IllegalArgumentException if two capsules would be built to the same binaries in {@code outDir}
+	 */
+	public static boolean buildBatch(List<Path> capsules, final String outDir, final List<String> platforms, final boolean parallel, final boolean incremental, final boolean bundle, final boolean cds, final boolean execCache, final Map<String, Path> runtimeJmods, int jobs, final BuildMetrics metrics) throws IOException {
+		final int threads = Math.max(1, Math.min(capsules.size(), jobs));
+		log.info("Building {} capsules with {} workers", capsules.size(), threads);
+		if (outDir != null) {
+			checkDistinctNames(capsules, outDir);
+			Files.createDirectories(Paths.get(outDir));
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<BuildResult>> builds = new ArrayList<>();
+			for (final Path capsule : capsules) {
+				builds.add(executor.submit(new Callable<BuildResult>() {
+					@Override
+					public BuildResult call() {
+						return buildCapsule(capsule, outDir, platforms, parallel, incremental, bundle, cds, execCache, runtimeJmods, metrics);
+					}
+				}));
+			}
+
+			final List<BuildResult> results = new ArrayList<>();
+			for (final Future<BuildResult> f : builds)
+				results.add(await(f));
+
+			boolean success = true;
+			log.info("Batch build report:");
+			for (final BuildResult r : results) {
+				if (r.isSuccess())
+					log.info("  OK     {} ({} ms)", r.capsule, r.millis);
+				else
+					log.info("  FAILED {} ({} ms): {}", r.capsule, r.millis, r.error.toString());
+				success &= r.isSuccess();
+			}
+			return success;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Ensures that no two capsules are built to the same binaries in the output directory, which is only named after
+	 * the capsules' file names (compared regardless of case, for case-insensitive file systems).
+	 */
+	private static void checkDistinctNames(List<Path> capsules, String outDir) {
+		final Map<String, List<Path>> byName = new TreeMap<>();
+		for (final Path capsule : capsules) {
+			final String name = getSimpleCapsuleName(capsule).toLowerCase(Locale.ROOT);
+			if (!byName.containsKey(name))
+				byName.put(name, new ArrayList<Path>());
+			byName.get(name).add(capsule);
+		}
+		final List<String> clashes = new ArrayList<>();
+		for (final List<Path> same : byName.values()) {
+			if (same.size() > 1)
+				clashes.add(same.toString());
+		}
+		if (!clashes.isEmpty())
+			throw new IllegalArgumentException("Capsules with the same name would overwrite each other's binaries in " + outDir + ": " + clashes
+				+ "; rename them, or build them without -o");
+	}
+
+	private static BuildResult buildCapsule(Path capsule, String outDir, List<String> platforms, boolean parallel, boolean incremental, boolean bundle, boolean cds, boolean execCache, Map<String, Path> runtimeJmods, BuildMetrics metrics) {
+		final long start = System.nanoTime();
+		Throwable error = null;
+		try (NativeCapsule nc = new NativeCapsule(capsule, outDir != null ? Paths.get(outDir).resolve(getSimpleCapsuleName(capsule)).toString() : null, metrics)
+				.setIncremental(incremental).setBundleDependencies(bundle).setCDS(cds).setExecCache(execCache).setRuntime(runtimeJmods)) {
+			nc.buildNative(platforms, parallel);
+		} catch (Throwable t) {
+			log.error("Building native binaries for " + capsule + " failed", t);
+			error = t;
+		}
+		return new BuildResult(capsule, (System.nanoTime() - start) / 1000000, error);
+	}
+
+	private static final class BuildResult {
+		final Path capsule;
+		final long millis;
+		final Throwable error;
+
+		BuildResult(Path capsule, long millis, Throwable error) {
+			this.capsule = capsule;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * Creates a build context for a single input capsule. Every native build of the capsule, whichever the platform,
+	 * shares this context; distinct contexts share no state and can be used concurrently.
+	 *
+	 * @param inCapsulePath The input capsule
+	 * @param outBasePath   The base output pathname of built binaries, or {@code null} for the capsule pathname
+	 */
+	public NativeCapsule(Path inCapsulePath, String outBasePath) {
+		this(inCapsulePath, outBasePath, new BuildMetrics());
+	}
+
+	/**
+	 * Creates a build context for a single input capsule, recording its build phases into the given metrics.
+	 *
+	 * @param inCapsulePath The input capsule
+	 * @param outBasePath   The base output pathname of built binaries, or {@code null} for the capsule pathname
+	 * @param metrics       The metrics the build phases are recorded into; they can be shared by several contexts
+	 */
+	public NativeCapsule(Path inCapsulePath, String outBasePath, BuildMetrics metrics) {
+		this.inCapsulePath = inCapsulePath;
+		this.metrics = metrics;
 		log.debug("Input capsule: {}", inCapsulePath.toAbsolutePath().normalize().toString());
-		inCapsule = new CapsuleLauncher(inCapsulePath).newCapsule();
-		outBasePath = options.valuesOf(o).size() == 1 ? options.valueOf(o) : getOutputBase();
-		log.debug("Output binary prefix: {}", outBasePath);
-		buildMac = options.has("m") || options.has("macosx");
-		buildUnix = options.has("u") || options.has("unix");
-		buildWindows = options.has("w") || options.has("windows");
+		try (BuildMetrics.Phase ph = phase(null, "load")) {
+			this.inCapsule = new CapsuleLauncher(inCapsulePath).newCapsule();
+			this.resources = new ResourceResolver(inCapsulePath);
+			try {
+				this.desc = new Descriptor(inCapsule, resources);
+			} catch (RuntimeException | Error e) {
+				try {
+					resources.close();
+				} catch (IOException ce) {
+					e.addSuppressed(ce);
+				}
+				throw e;
+			}
+			ph.read(sizeOf(inCapsulePath));
+		}
+		this.outBasePath = getOutputBase(inCapsulePath, outBasePath);
+		log.debug("Output binary prefix: {}", this.outBasePath);
+	}
 
-		buildNative();
+	/**
+	 * Sets whether binaries that are up to date with the input capsule should be skipped. Up-to-date-ness is
+	 * tracked by a build stamp written next to each binary.
+	 */
+	public NativeCapsule setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
 
-		log.debug("Removing temp files");
-		for (final Path p : tmpFiles)
-			Capsule.delete(p);
+	/**
+	 * Sets whether the capsule's Maven dependencies should be resolved at build time and embedded in the binaries, so
+	 * that they start without resolving them. Capsules with no {@code Dependencies} are not affected.
+	 *
+	 * @throws IllegalArgumentException if the capsule's dependencies can't be resolved at build time for all
+	 *                                  platforms: manifest sections declare their own, or the application is given as
+	 *                                  Maven coordinates
+	 */
+	public NativeCapsule setBundleDependencies(boolean bundleDependencies) {
+		if (bundleDependencies && desc.bundlingProblem != null)
+			throw new IllegalArgumentException("The dependencies of " + inCapsulePath + " can't be bundled: " + desc.bundlingProblem);
+		this.bundleDependencies = bundleDependencies;
+		return this;
 	}
 
-	private static String getOutputBase() {
-		return getOutputBase(null);
+	/**
+	 * Sets whether the binaries should start their JVM with a class-data-sharing archive kept next to the executable.
+	 * The Unix and Mac OS X archives are trained at build time by launching the binary with this JVM; all archives
+	 * are otherwise created on first launch and regenerated whenever they are stale.
+	 */
+	public NativeCapsule setCDS(boolean cds) {
+		this.cds = cds;
+		return this;
+	}
+
+	/**
+	 * Sets whether the binaries should record the application's command line when first launched, and later start
+	 * the application JVM directly with it instead of going through a capsule JVM. The recorded command is used only
+	 * as long as the binary, the Java installation and the classpath are unchanged (and, on Windows, as long as the
+	 * JVM options set in the executable suffice); dependencies are therefore not updated until one of them changes.
+	 */
+	public NativeCapsule setExecCache(boolean execCache) {
+		this.execCache = execCache;
+		return this;
+	}
+
+	/**
+	 * Sets whether the binaries should bundle a Java runtime image, linked with only the modules the capsule uses,
+	 * and launch it rather than an installed Java. The image of each platform is linked from the given {@code jmods}
+	 * directory; platforms with none get no runtime.
+	 *
+	 * @param runtimeJmods The {@code jmods} directories of JDKs for the target platforms, by platform, or
+	 *                     {@code null} for no runtime
+	 */
+	public NativeCapsule setRuntime(Map<String, Path> runtimeJmods) {
+		this.runtimeJmods = runtimeJmods != null ? new HashMap<>(runtimeJmods) : null;
+		return this;
+	}
+
+	private Path getRuntimeJmods(String platform) {
+		return runtimeJmods != null ? runtimeJmods.get(platform) : null;
+	}
+
+	private static String getHostPlatform() {
+		final String os = Platform.myPlatform().getOS();
+		return Platform.OS_WINDOWS.equals(os) || Platform.OS_MACOS.equals(os) ? os : Platform.OS_UNIX;
+	}
+
+	private boolean isBundlingDependencies() {
+		return bundleDependencies && !desc.dependencies.isEmpty();
+	}
+
+	/**
+	 * The input capsule's metadata needed by the platform builders, read once and shared by all of them.
+	 */
+	private static final class Descriptor {
+		final String appId;
+		final String appName;
+		final String appVersion;
+		final String minJavaVersion;
+		final String javaVersion;
+		final Boolean jdkRequired;
+		final boolean gui;
+		final boolean singleInstance;
+		final String vendor;
+		final String nativeDescription;
+		final String copyright;
+		final String internalName;
+		final String icon;
+		final String splash;
+		final List<String> allCaplets;
+		final List<String> caplets;
+		final List<String> guiCaplets;
+		final boolean hasMavenCaplet;
+		final List<String> dependencies;
+		final List<String> repositories;
+		final boolean allowSnapshots;
+		final List<String> appClassPath;
+		final List<String> jvmArgs;
+		final String bundlingProblem;
+		final List<String> runtimeModules;
+
+		Descriptor(co.paralleluniverse.capsule.Capsule capsule, ResourceResolver resources) {
+			this.appId = capsule.getAppId();
+			this.appName = getStringAttribute(capsule, Capsule.ATTR_APP_NAME.getKey());
+			this.appVersion = getStringAttribute(capsule, Capsule.ATTR_APP_VERSION.getKey());
+			this.minJavaVersion = getStringAttribute(capsule, Capsule.ATTR_MIN_JAVA_VERSION.getKey());
+			this.javaVersion = getStringAttribute(capsule, Capsule.ATTR_JAVA_VERSION.getKey());
+			this.jdkRequired = capsule.hasAttribute(Attribute.named(Capsule.ATTR_JDK_REQUIRED.getKey())) ?
+				capsule.<Boolean>getAttribute(Attribute.<Boolean>named(Capsule.ATTR_JDK_REQUIRED.getKey())) : null;
+			this.gui = getBooleanAttribute(capsule, ATTR_GUI);
+			this.singleInstance = getBooleanAttribute(capsule, ATTR_SINGLE_INSTANCE);
+			this.vendor = capsule.getAttribute(Attribute.<String>named(ATTR_IMPLEMENTATION_VENDOR));
+			this.nativeDescription = capsule.getAttribute(Attribute.<String>named(ATTR_NATIVE_DESCRIPTION));
+			this.copyright = capsule.getAttribute(Attribute.<String>named(ATTR_COPYRIGHT));
+			this.internalName = capsule.getAttribute(Attribute.<String>named(ATTR_INTERNAL_NAME));
+			this.icon = getStringAttribute(capsule, ATTR_ICON);
+			this.splash = getSplash(capsule, resources);
+			this.hasMavenCaplet = capsule.hasCaplet(MAVEN_CAPSULE_NAME);
+			this.allCaplets = getListAttribute(capsule, Capsule.ATTR_CAPLETS.getKey());
+			this.caplets = Collections.unmodifiableList(computeNonMavenCaplets(capsule));
+			this.guiCaplets = Collections.unmodifiableList(computeGUICaplets(capsule, caplets));
+			this.dependencies = getListAttribute(capsule, ATTR_DEPENDENCIES);
+			this.repositories = capsule.hasAttribute(Attribute.named(ATTR_REPOSITORIES)) ? getListAttribute(capsule, ATTR_REPOSITORIES) : null;
+			this.allowSnapshots = getBooleanAttribute(capsule, ATTR_ALLOW_SNAPSHOTS);
+			this.appClassPath = getListAttribute(capsule, ATTR_APP_CLASS_PATH);
+			this.jvmArgs = getListAttribute(capsule, Capsule.ATTR_JVM_ARGS.getKey());
+			this.bundlingProblem = getBundlingProblem(resources);
+			final String modules = getStringAttribute(capsule, ATTR_RUNTIME_MODULES);
+			this.runtimeModules = modules != null ? Collections.unmodifiableList(asList(modules.trim().split("[\\s,]+"))) : null;
+		}
+
+		/**
+		 * The attributes that affect the built binaries, recorded in build stamps.
+		 */
+		Map<String, String> getStampAttributes() {
+			final Map<String, String> attrs = new TreeMap<>();
+			putIfNotNull(attrs, Capsule.ATTR_APP_NAME.getKey(), appName);
+			putIfNotNull(attrs, Capsule.ATTR_APP_VERSION.getKey(), appVersion);
+			putIfNotNull(attrs, Capsule.ATTR_MIN_JAVA_VERSION.getKey(), minJavaVersion);
+			putIfNotNull(attrs, Capsule.ATTR_JAVA_VERSION.getKey(), javaVersion);
+			putIfNotNull(attrs, Capsule.ATTR_JDK_REQUIRED.getKey(), jdkRequired);
+			putIfNotNull(attrs, Capsule.ATTR_CAPLETS.getKey(), guiCaplets);
+			putIfNotNull(attrs, Capsule.ATTR_JVM_ARGS.getKey(), jvmArgs);
+			attrs.put(ATTR_GUI, Boolean.toString(gui));
+			attrs.put(ATTR_SINGLE_INSTANCE, Boolean.toString(singleInstance));
+			putIfNotNull(attrs, ATTR_IMPLEMENTATION_VENDOR, vendor);
+			putIfNotNull(attrs, ATTR_NATIVE_DESCRIPTION, nativeDescription);
+			putIfNotNull(attrs, ATTR_COPYRIGHT, copyright);
+			putIfNotNull(attrs, ATTR_INTERNAL_NAME, internalName);
+			putIfNotNull(attrs, ATTR_ICON, icon);
+			putIfNotNull(attrs, ATTR_SPLASH, splash);
+			putIfNotNull(attrs, ATTR_RUNTIME_MODULES, runtimeModules);
+			return attrs;
+		}
+
+		/**
+		 * The caplets of the GUI capsule: {@code GUIMavenCapsule} replaces Maven caplets unless the dependencies are
+		 * bundled, in which case they are dropped.
+		 */
+		List<String> getGUICaplets(boolean bundled) {
+			if (!bundled)
+				return guiCaplets;
+			final List<String> cs = new ArrayList<>(caplets);
+			cs.add(GUI_CAPSULE_NAME);
+			return cs;
+		}
+
+		/**
+		 * The caplets of the built capsule, before any added for the native binaries' own features.
+		 */
+		List<String> getCaplets(boolean bundled) {
+			if (gui)
+				return getGUICaplets(bundled);
+			return bundled ? caplets : allCaplets;
+		}
+
+		/**
+		 * Why the dependencies can't be resolved once for all platforms, or {@code null}. Dependencies declared by
+		 * manifest sections (for a platform, a Java version or a mode) and an application given as Maven coordinates
+		 * are only resolved when launching, by the Maven caplets that bundling removes.
+		 */
+		private static String getBundlingProblem(ResourceResolver resources) {
+			try {
+				final byte[] mf = resources.getBytes(JarFile.MANIFEST_NAME);
+				if (mf == null)
+					return null;
+				final Manifest manifest = new Manifest(new ByteArrayInputStream(mf));
+				if (isArtifact(manifest.getMainAttributes().getValue(ATTR_APPLICATION)))
+					return "the " + ATTR_APPLICATION + " is given as Maven coordinates";
+				final List<String> sections = new ArrayList<>();
+				for (final Map.Entry<String, Attributes> e : manifest.getEntries().entrySet()) {
+					if (e.getValue().getValue(ATTR_DEPENDENCIES) != null || isArtifact(e.getValue().getValue(ATTR_APPLICATION)))
+						sections.add(e.getKey());
+				}
+				return sections.isEmpty() ? null : "the manifest sections " + sections + " declare dependencies of their own";
+			} catch (IOException e) {
+				return "the manifest can't be read: " + e.getMessage();
+			}
+		}
+
+		private static boolean isArtifact(String application) {
+			return application != null && application.contains(":") && !application.endsWith(".jar");
+		}
+
+		private static void putIfNotNull(Map<String, String> map, String key, Object value) {
+			if (value != null)
+				map.put(key, value.toString());
+		}
+
+		private static String getStringAttribute(co.paralleluniverse.capsule.Capsule capsule, String name) {
+			return capsule.hasAttribute(Attribute.named(name)) ? capsule.getAttribute(Attribute.<String>named(name)) : null;
+		}
+
+		private static String getSplash(co.paralleluniverse.capsule.Capsule capsule, ResourceResolver resources) {
+			final String splash = getStringAttribute(capsule, ATTR_SPLASH);
+			try {
+				if (splash != null && !resources.hasResource(splash)) {
+					log.info("Splash image {} can't be found, omitting", splash);
+					return null;
+				}
+			} catch (IOException e) {
+				log.info("Splash image {} can't be read, omitting: {}", splash, e.getMessage());
+				return null;
+			}
+			return splash;
+		}
+
+		private static List<String> getListAttribute(co.paralleluniverse.capsule.Capsule capsule, String name) {
+			final List<String> list = capsule.getAttribute(Attribute.<List<String>>named(name));
+			return list != null ? Collections.unmodifiableList(new ArrayList<>(list)) : Collections.<String>emptyList();
+		}
+
+		private static boolean getBooleanAttribute(co.paralleluniverse.capsule.Capsule capsule, String name) {
+			if (capsule.hasAttribute(Attribute.<String>named(name))) {
+				try {
+					// typed by the caplet declaring the attribute, if any
+					final Object value = capsule.getAttribute(Attribute.<Object>named(name));
+					return value != null && Boolean.parseBoolean(value.toString());
+				} catch (Throwable ignored) {}
+			}
+			return false;
+		}
+
+		private static List<String> computeNonMavenCaplets(co.paralleluniverse.capsule.Capsule capsule) {
+			List<String> caplets = capsule.getAttribute(Attribute.<List<String>>named(Capsule.ATTR_CAPLETS.getKey()));
+			//noinspection Convert2Diamond
+			caplets = caplets == null ? new ArrayList<String>() : new ArrayList<String>(caplets);
+
+			for (Class<?> c : capsule.getCaplets()) {
+				if (CapletUtil.isSubclass(c, MAVEN_CAPSULE_NAME)) {
+					// The 2-stage Capsule lookup/resolve rule is:
+					//
+					// | Each `lookup` / `resolve`-customizing capsule must return from `lookup` values that only its own
+					// | `resolve` can handle. Else (f.e. when extending `MavenCapsule`) the capsule-building process must
+					// | make sure that only one of the capsules that can `resolve` the same `lookup` values is present
+					// | in the chain.
+
+					log.debug("Removing Maven caplet {}", c.getName());
+					if (caplets.remove(c.getName()))
+						log.debug("Successfully removed Maven caplet {}", c.getName());
+				}
+			}
+			return caplets;
+		}
+
+		private static List<String> computeGUICaplets(co.paralleluniverse.capsule.Capsule capsule, List<String> nonMavenCaplets) {
+			final List<String> caplets = new ArrayList<>(nonMavenCaplets);
+
+			log.debug("GUI: adding {}", GUI_CAPSULE_NAME);
+			caplets.add(GUI_CAPSULE_NAME);
+
+			boolean usesMaven = false;
+			for (Class<?> c : capsule.getCaplets())
+				usesMaven |= CapletUtil.isSubclass(c, MAVEN_CAPSULE_NAME);
+			if (usesMaven) {
+				log.debug("GUI: adding GUI Maven caplet {}", GUI_MAVEN_CAPSULE_NAME);
+				caplets.add(GUI_MAVEN_CAPSULE_NAME);
+			}
+			return caplets;
+		}
 	}
 
-	private static String getOutputBase(String outBase) {
+	private static String getOutputBase(Path inCapsulePath, String outBase) {
 		if (outBase == null) {
 			outBase = inCapsulePath.toAbsolutePath().normalize().toString();
 			if (outBase.toLowerCase().endsWith(".jar"))
@@ -113,184 +660,379 @@ public class NativeCapsule {
 		return outBase;
 	}
 
-	private static void buildNative() {
-		final String outBase = getOutputBase(outBasePath);
-		try {
-			final List<String> platforms = new ArrayList<>();
-			if (buildMac)
-				platforms.add(Platform.OS_MACOS);
-			if (buildUnix)
-				platforms.add(Platform.OS_UNIX);
-			if (buildWindows)
-				platforms.add(Platform.OS_WINDOWS);
-
+	/**
+	 * Builds the native binaries for the given platforms.
+	 *
+	 * @param platforms The platforms to build for; if empty the current platform will be used
+	 * @param parallel  Whether the platforms should be built concurrently
+	 */
+	public void buildNative(List<String> platforms, boolean parallel) {
+		try (BuildMetrics.Phase ph = phase(null, "build")) {
 			if (platforms.isEmpty())
-				platforms.add("CURRENT"); // Default
+				platforms = Collections.singletonList(PLATFORM_CURRENT); // Default
 
 			log.debug("Building native binaries for the following platforms: {}", platforms.toString());
 
-			for (final String p : platforms)
-				buildApp(p, Paths.get(outBase));
+			final Path out = Paths.get(outBasePath);
+			if (parallel && platforms.size() > 1)
+				buildAppsConcurrently(platforms, out);
+			else {
+				for (final String p : platforms)
+					buildApp(p, out);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private static void buildApp(String platform, Path out) throws IOException {
+	private void buildAppsConcurrently(List<String> platforms, final Path out) throws IOException {
+		final int threads = Math.min(platforms.size(), Runtime.getRuntime().availableProcessors());
+		log.debug("Building {} platforms concurrently with {} threads", platforms.size(), threads);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Path>> builds = new ArrayList<>();
+			for (final String p : platforms) {
+				builds.add(executor.submit(new Callable<Path>() {
+					@Override
+					public Path call() throws IOException {
+						return buildApp(p, out);
+					}
+				}));
+			}
+			for (final Future<Path> b : builds)
+				await(b);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static <T> T await(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			final Throwable t = e.getCause();
+			if (t instanceof IOException)
+				throw (IOException) t;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * Releases the input capsule and removes all the temporary files created by the builds of this capsule.
+	 */
+	@Override
+	public void close() throws IOException {
+		resources.close();
+		try (BuildMetrics.Phase ph = phase(null, "temp-cleanup")) {
+			deleteTempFiles();
+		}
+	}
+
+	private void deleteTempFiles() throws IOException {
+		log.debug("Removing temp files");
+		synchronized (tmpFiles) {
+			for (final Path p : tmpFiles)
+				Capsule.delete(p);
+			tmpFiles.clear();
+		}
+	}
+
+	private Path buildApp(String platform, Path out) throws IOException {
+		if (PLATFORM_CURRENT.equals(platform))
+			return buildApp(Platform.myPlatform().getOS(), out);
+
+		final Path output = getOutput(platform, out);
+		final Path stampFile = getStampFile(output);
+		final Properties stamp;
+		try (BuildMetrics.Phase ph = phase(platform, "stamp-check")) {
+			stamp = incremental ? getBuildStamp(platform) : null;
+			if (stamp != null && Files.exists(output) && stamp.equals(readBuildStamp(stampFile))) {
+				log.info("{} is up to date, skipping", output.toAbsolutePath().normalize().toString());
+				return output;
+			}
+			Files.deleteIfExists(stampFile); // never leave a stamp next to a stale or partially built binary
+		}
+
+		try (BuildMetrics.Phase ph = phase(platform, "build")) {
+			if (Platform.OS_MACOS.equals(platform))
+				buildMacApp(out);
+			else if (Platform.OS_UNIX.equals(platform))
+				buildUnixApp(out);
+			else if (Platform.OS_WINDOWS.equals(platform))
+				buildWindowsApp(out);
+		}
+
+		if (stamp != null)
+			writeBuildStamp(stampFile, stamp);
+		return output;
+	}
+
+	private static Path getOutput(String platform, Path out) {
 		if (Platform.OS_MACOS.equals(platform))
-			buildMacApp(out);
+			return withSuffix(out, ".app");
 		else if (Platform.OS_UNIX.equals(platform))
-			buildUnixApp(out);
+			return out;
 		else if (Platform.OS_WINDOWS.equals(platform))
-			buildWindowsApp(out);
-		else if ("CURRENT".equals(platform))
-			buildApp(Platform.myPlatform().getOS(), out);
+			return withSuffix(out, ".exe");
 		else
 			throw new RuntimeException("Platform \"" + platform + "\" is unsupported");
 	}
 
-	private static String getSimpleCapsuleName() {
-		final String filename = inCapsulePath.getFileName().toString();
-		return filename.endsWith(".jar") ? filename.substring(0, filename.length() - 4) : filename;
+	private static Path getStampFile(Path output) {
+		return output.toAbsolutePath().getParent().resolve(output.getFileName().toString() + ".stamp");
 	}
 
-	private static Jar createJar(Path out) throws IOException {
-		final Jar jar = new Jar(inCapsulePath);
-		if (out != null) {
-			log.debug("Creating JAR for native app: {}", out.toAbsolutePath().normalize().toString());
-			jar.setOutput(out);
+	private Properties getBuildStamp(String platform) throws IOException {
+		final Properties stamp = new Properties();
+		stamp.setProperty("tool.sha1", getToolHash());
+		stamp.setProperty("platform", platform);
+		stamp.setProperty("capsule.sha1", getInCapsuleHash());
+		for (final Map.Entry<String, String> a : desc.getStampAttributes().entrySet())
+			stamp.setProperty("attribute." + a.getKey(), a.getValue());
+		if (cds)
+			stamp.setProperty("cds", "true");
+		if (execCache)
+			stamp.setProperty("exec-cache", "true");
+		if (getRuntimeJmods(platform) != null)
+			stamp.setProperty("runtime.jmods", getRuntimeJmods(platform).toAbsolutePath().normalize().toString());
+		if (isBundlingDependencies()) {
+			for (final Map.Entry<String, Path> d : getBundledDependencies().entrySet())
+				stamp.setProperty("dependency." + d.getKey(), Files.size(d.getValue()) + ":" + Files.getLastModifiedTime(d.getValue()).toMillis());
+		}
+		return stamp;
+	}
+
+	private static Properties readBuildStamp(Path stampFile) throws IOException {
+		if (!Files.isRegularFile(stampFile))
+			return null;
+		final Properties stamp = new Properties();
+		try (InputStream is = Files.newInputStream(stampFile)) {
+			stamp.load(is);
+		}
+		return stamp;
+	}
+
+	private static void writeBuildStamp(Path stampFile, Properties stamp) throws IOException {
+		log.debug("Writing build stamp {}", stampFile);
+		try (OutputStream os = Files.newOutputStream(stampFile)) {
+			stamp.store(os, "capsule-desktop build stamp");
 		}
-		return jar;
 	}
 
-	private static boolean isGUIApp() {
-		if (inCapsule.hasAttribute(Attribute.<String>named(ATTR_GUI))) {
+	private synchronized String getInCapsuleHash() throws IOException {
+		if (inCapsuleHash == null) {
+			log.debug("Hashing {}", inCapsulePath);
 			try {
-				return Boolean.parseBoolean(inCapsule.getAttribute(Attribute.<String>named(ATTR_GUI)));
-			} catch (Throwable ignored) {}
+				inCapsuleHash = toHex(IOUtil.digest(inCapsulePath, MessageDigest.getInstance("SHA-1")).digest());
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e);
+			}
 		}
-		return false;
+		return inCapsuleHash;
 	}
 
-	private static Path buildWindowsApp(Path out) throws IOException {
-		log.debug("Building native Windows app: {}", out.toAbsolutePath().normalize().toString());
+	/**
+	 * The hash of this tool's code: that of its JAR, or of its class files when it isn't run from one. Binaries built
+	 * by any other build of the tool, whose launcher code or caplets may differ, are not up to date.
+	 */
+	private static synchronized String getToolHash() throws IOException {
+		if (toolHash == null) {
+			try {
+				final MessageDigest md = MessageDigest.getInstance("SHA-1");
+				final Path location = Paths.get(NativeCapsule.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+				if (Files.isDirectory(location)) {
+					final List<Path> classes = new ArrayList<>();
+					Files.walkFileTree(location, new SimpleFileVisitor<Path>() {
+						@Override
+						public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+							classes.add(file);
+							return FileVisitResult.CONTINUE;
+						}
+					});
+					Collections.sort(classes);
+					for (final Path c : classes) {
+						md.update(location.relativize(c).toString().getBytes(Charset.forName("UTF-8")));
+						IOUtil.digest(c, md);
+					}
+				} else
+					IOUtil.digest(location, md);
+				toolHash = toHex(md.digest());
+			} catch (NoSuchAlgorithmException | URISyntaxException e) {
+				throw new AssertionError(e);
+			}
+		}
+		return toolHash;
+	}
 
-		setLaunch4JBinDir();
-		setLaunch4JLibDir();
-		setLaunch4JHeadDir();
-		setLaunch4JTmpDir();
+	private static String toHex(byte[] bytes) {
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	private String getSimpleCapsuleName() {
+		return getSimpleCapsuleName(inCapsulePath);
+	}
+
+	private static String getSimpleCapsuleName(Path capsule) {
+		final String filename = capsule.getFileName().toString();
+		return filename.endsWith(".jar") ? filename.substring(0, filename.length() - 4) : filename;
+	}
+
+	JarRewriter createJar() { // package-private for the benchmarks
+		return new JarRewriter(inCapsulePath);
+	}
+
+	private static Path writeJar(JarRewriter jar, Path out) throws IOException {
+		log.debug("Creating JAR for native app: {}", out.toAbsolutePath().normalize().toString());
+		return jar.write(out);
+	}
+
+	private Path buildWindowsApp(Path out) throws IOException {
+		log.debug("Building native Windows app: {}", out.toAbsolutePath().normalize().toString());
 
 		Path tmpJar = null;
-		Path icon = null;
 		try {
-			if (isGUIApp()) {
+			if (desc.gui || isBundlingDependencies() || execCache || cds) {
 				tmpJar = Files.createTempFile("native-capsule-", ".jar");
 				log.debug("Creating Windows temp jar {}", tmpJar.toFile().toString());
-				Jar j = createJar(tmpJar);
-				makeGUICapsule(j);
-				j.close();
+				try (BuildMetrics.Phase ph = phase(Platform.OS_WINDOWS, "jar-rewrite")) {
+					final JarRewriter j = createJar();
+					if (isBundlingDependencies())
+						bundleDependencies(j);
+					if (desc.gui)
+						makeGUICapsule(j);
+					if (cds)
+						addAppCDS(j);
+					if (execCache)
+						addLaunchCache(j);
+					writeJar(j, tmpJar);
+					ph.read(sizeOf(inCapsulePath)).written(sizeOf(tmpJar));
+				}
 			}
 			final Path jar = tmpJar != null ? tmpJar : inCapsulePath;
 
-			ConfigPersister.getInstance().createBlank();
-			final Config c = ConfigPersister.getInstance().getConfig();
-			final String head = isGUIApp() ? Config.GUI_HEADER : Config.CONSOLE_HEADER;
-			log.debug("Windows: using head type {}", head);
-			c.setHeaderType(head);
-			c.setOutfile(withSuffix(out, ".exe").toFile());
-			log.debug("Windows: using jar {}", jar.toAbsolutePath().normalize().toString());
-			log.debug("Windows: writing to {}", c.getOutfile().toString());
-			c.setJar(jar.toFile());
-
-			if (inCapsule.hasAttribute(Attribute.named(Capsule.ATTR_MIN_JAVA_VERSION.getKey()))) {
-				final String minJavaVersion = inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_MIN_JAVA_VERSION.getKey()));
-				log.debug("Windows: requiring minumum Java version {}", minJavaVersion);
-				c.getJre().setMinVersion(minJavaVersion);
-			}
-			if (inCapsule.hasAttribute(Attribute.named(Capsule.ATTR_JAVA_VERSION.getKey()))) {
-				final String maxJavaVersion = inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_JAVA_VERSION.getKey()));
-				log.debug("Windows: requiring maximum Java version {}", maxJavaVersion);
-				c.getJre().setMaxVersion(maxJavaVersion);
-			}
-			if (inCapsule.hasAttribute(Attribute.named(Capsule.ATTR_JDK_REQUIRED.getKey()))) {
-				final String jdkPreference = inCapsule.<Boolean>getAttribute(Attribute.<Boolean>named(Capsule.ATTR_JDK_REQUIRED.getKey())) ?
-					Jre.JDK_PREFERENCE_JDK_ONLY : null;
-				log.debug("Windows: JDK preferred = {}", Jre.JDK_PREFERENCE_JDK_ONLY.equals(jdkPreference) ? "true" : "false");
-				c.getJre().setJdkPreference(jdkPreference);
-			}
+			final Path runtime = getRuntimeJmods(Platform.OS_WINDOWS) != null ? linkRuntime(Platform.OS_WINDOWS, getRuntimeDir(out, Platform.OS_WINDOWS)) : null;
 
-			if (inCapsule.hasAttribute(Attribute.<String>named(ATTR_SINGLE_INSTANCE))) {
-				boolean singleInstance = false;
-				try {
-					singleInstance = Boolean.parseBoolean(inCapsule.getAttribute(Attribute.<String>named(ATTR_SINGLE_INSTANCE)));
-				} catch (Throwable ignored) {}
-				if (singleInstance) {
+			final BuildMetrics.Phase lockPhase = phase(Platform.OS_WINDOWS, "launch4j-wait");
+			synchronized (LAUNCH4J_LOCK) {
+				lockPhase.close();
+				final Path launch4jDir;
+				try (BuildMetrics.Phase ph = phase(Platform.OS_WINDOWS, "launch4j-toolchain")) {
+					launch4jDir = prepareLaunch4JToolchain();
+				}
+				final Path launch4jTmpDir = setLaunch4JTmpDir();
+
+				ConfigPersister.getInstance().createBlank();
+				final Config c = ConfigPersister.getInstance().getConfig();
+				final String head = desc.gui ? Config.GUI_HEADER : Config.CONSOLE_HEADER;
+				log.debug("Windows: using head type {}", head);
+				c.setHeaderType(head);
+				c.setOutfile(withSuffix(out, ".exe").toFile());
+				log.debug("Windows: using jar {}", jar.toAbsolutePath().normalize().toString());
+				log.debug("Windows: writing to {}", c.getOutfile().toString());
+				c.setJar(jar.toFile());
+
+				if (runtime != null) {
+					log.debug("Windows: using the bundled runtime {}", runtime.getFileName());
+					c.getJre().setPath(runtime.getFileName().toString()); // relative to the executable; no JRE search
+				} else {
+					if (desc.minJavaVersion != null) {
+						log.debug("Windows: requiring minumum Java version {}", desc.minJavaVersion);
+						c.getJre().setMinVersion(desc.minJavaVersion);
+					}
+					if (desc.javaVersion != null) {
+						log.debug("Windows: requiring maximum Java version {}", desc.javaVersion);
+						c.getJre().setMaxVersion(desc.javaVersion);
+					}
+					if (desc.jdkRequired != null) {
+						final String jdkPreference = desc.jdkRequired ? Jre.JDK_PREFERENCE_JDK_ONLY : null;
+						log.debug("Windows: JDK preferred = {}", Jre.JDK_PREFERENCE_JDK_ONLY.equals(jdkPreference) ? "true" : "false");
+						c.getJre().setJdkPreference(jdkPreference);
+					}
+				}
+
+				final List<String> jvmOptions = new ArrayList<>();
+				if (cds) {
+					final String archive = "%EXEDIR%\\" + withSuffix(out, ".exe").getFileName() + ClassDataSharing.ARCHIVE_SUFFIX;
+					log.debug("Windows: using CDS archive {}", archive);
+					jvmOptions.addAll(ClassDataSharing.getJvmOptions(archive));
+				}
+				if (execCache) {
+					log.debug("Windows: starting the application directly once its launch is cached");
+					final ClassPath cp = new ClassPath();
+					cp.setMainClass(DirectLauncher.class.getName());
+					cp.setPaths(Collections.<String>emptyList()); // the wrapped JAR only
+					c.setClassPath(cp);
+					// the options the application JVM is started with; Capsule expands variables, so those are left out
+					for (final String a : desc.jvmArgs) {
+						if (!a.contains("$"))
+							jvmOptions.add(a);
+					}
+					jvmOptions.add("-D" + DirectLauncher.PROP_LAUNCH_KEY + "=" + getInCapsuleHash());
+				}
+				if (!jvmOptions.isEmpty())
+					c.getJre().setOptions(jvmOptions);
+
+				if (desc.singleInstance) {
 					log.debug("Windows: restricting to single instance as requested");
 					final SingleInstance si = new SingleInstance();
-					si.setWindowTitle(inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_APP_NAME.getKey())));
-					si.setMutexName(inCapsule.getAppId());
+					si.setWindowTitle(desc.appName);
+					si.setMutexName(desc.appId);
 					c.setSingleInstance(si);
 				}
-			}
 
-			if (inCapsule.getAttribute(Attribute.<String>named(ATTR_IMPLEMENTATION_VENDOR)) != null
-				|| inCapsule.getAttribute(Attribute.<String>named(ATTR_NATIVE_DESCRIPTION)) != null
-				|| inCapsule.getAttribute(Attribute.<String>named(ATTR_COPYRIGHT)) != null
-				|| inCapsule.getAttribute(Attribute.<String>named(ATTR_INTERNAL_NAME)) != null) {
-				log.debug("Windows: detected metadata attributes, setting them");
-
-				final VersionInfo versionInfo = new VersionInfo();
-				versionInfo.setCompanyName(inCapsule.getAttribute(Attribute.<String>named(ATTR_IMPLEMENTATION_VENDOR)));
-				versionInfo.setProductName(inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_APP_NAME.getKey())));
-				versionInfo.setFileVersion(versionToWindowsVersion(inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_APP_VERSION.getKey()))));
-				versionInfo.setFileDescription(inCapsule.getAttribute(Attribute.<String>named(ATTR_NATIVE_DESCRIPTION)));
-				versionInfo.setCopyright(inCapsule.getAttribute(Attribute.<String>named(ATTR_COPYRIGHT)));
-				versionInfo.setInternalName(inCapsule.getAttribute(Attribute.<String>named(ATTR_INTERNAL_NAME)));
-				versionInfo.setOriginalFilename(withSuffix(out, ".exe").toFile().getName());
-				versionInfo.setProductVersion(versionToWindowsVersion(inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_APP_VERSION.getKey()))));
-				versionInfo.setTxtFileVersion(inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_APP_VERSION.getKey())));
-				versionInfo.setTxtProductVersion(inCapsule.getAttribute(Attribute.<String>named(Capsule.ATTR_APP_VERSION.getKey())));
-				c.setVersionInfo(versionInfo);
-			}
+				if (desc.vendor != null || desc.nativeDescription != null || desc.copyright != null || desc.internalName != null) {
+					log.debug("Windows: detected metadata attributes, setting them");
+
+					final VersionInfo versionInfo = new VersionInfo();
+					versionInfo.setCompanyName(desc.vendor);
+					versionInfo.setProductName(desc.appName);
+					versionInfo.setFileVersion(versionToWindowsVersion(desc.appVersion));
+					versionInfo.setFileDescription(desc.nativeDescription);
+					versionInfo.setCopyright(desc.copyright);
+					versionInfo.setInternalName(desc.internalName);
+					versionInfo.setOriginalFilename(withSuffix(out, ".exe").toFile().getName());
+					versionInfo.setProductVersion(versionToWindowsVersion(desc.appVersion));
+					versionInfo.setTxtFileVersion(desc.appVersion);
+					versionInfo.setTxtProductVersion(desc.appVersion);
+					c.setVersionInfo(versionInfo);
+				}
 
-			if (inCapsule.hasAttribute(Attribute.<String>named(ATTR_ICON))) {
-				final URLClassLoader urlClassLoader = new URLClassLoader( new URL[] { inCapsulePath.toUri().toURL() } );
-				InputStream input = null;
-				String resName = null;
-				try {
-					resName = inCapsule.getAttribute(Attribute.<String>named(ATTR_ICON)) + ".ico";
+				if (desc.icon != null) {
+					final String resName = desc.icon + ".ico";
 					log.debug("Windows: attempting to use icon {}", resName);
-					input = urlClassLoader.getResourceAsStream(resName);
-				} catch (Throwable ignored) {
-					log.info("Windows: icon resource {} can't be opened, omitting", resName);
-				}
-				if (input != null) {
-					boolean success = false;
-					long copied;
-					try {
-						icon = Files.createTempFile("", ".ico");
+					try (BuildMetrics.Phase ph = phase(Platform.OS_WINDOWS, "icon-copy")) {
+						final Path icon = launch4jTmpDir.resolve("icon.ico"); // removed with the launch4j temp dir
 						log.debug("Windows: copying icon resource to {} and setting launch4j icon", icon.toString());
-						copied = Files.copy(input, icon, StandardCopyOption.REPLACE_EXISTING);
-						if (copied > 0) {
+						final long copied = resources.copy(resName, icon);
+						if (copied >= 0) {
+							ph.read(copied).written(copied);
 							log.debug("Windows: icon copied successfully to resource to {}, bytes {}", icon.toString(), copied);
-							success = true;
+							c.setIcon(icon.toFile());
+						} else {
+							log.info("Windows: icon resource {} can't be found, omitting", resName);
 						}
 					} catch (IOException ioe) {
 						log.info("Windows: icon resource can't be copied successfully to {}, error: {}", resName, ioe.getMessage());
-					} finally {
-						input.close();
-						if (success)
-							c.setIcon(icon.toFile());
-						else
-							log.info("Windows: icon resource {} can't be read, omitting", resName);
 					}
-				} else {
-					log.info("Windows: icon resource {} can't be found, omitting", resName);
 				}
-			}
 
-			final Builder builder = new Builder(Log.getConsoleLog(), findOwnJarFile(NativeCapsule.class).toAbsolutePath().getParent().toFile());
-			builder.build();
+				try (BuildMetrics.Phase ph = phase(Platform.OS_WINDOWS, "launch4j-link")) {
+					final Builder builder = new Builder(Log.getConsoleLog(), launch4jDir.toFile());
+					builder.build();
+					ph.read(sizeOf(jar)).written(sizeOf(c.getOutfile().toPath()));
+				}
+			}
 
 			log.debug("Windows native app build complete");
 
@@ -300,8 +1042,6 @@ public class NativeCapsule {
 		} finally {
 			if (tmpJar != null)
 				Files.delete(tmpJar);
-			if (icon != null)
-				Files.delete(icon);
 		}
 	}
 
@@ -311,7 +1051,23 @@ public class NativeCapsule {
 		return version;
 	}
 
-	private static Path setLaunch4JTmpDir() {
+	private static Path prepareLaunch4JToolchain() {
+		if (launch4jToolchain == null) {
+			try {
+				launch4jToolchain = Launch4JToolchain.extract(findOwnJarFile(NativeCapsule.class), Launch4JToolchain.getDefaultCacheDir());
+			} catch (IOException e) {
+				throw new RuntimeException("Could not extract the toolchain necessary for building a Windows executable", e);
+			}
+			log.debug("Using launch4j toolchain in {}", launch4jToolchain.getBaseDir());
+			if (launch4jToolchain.getBinDir() != null) {
+				log.debug("Setting 'launch4j.bindir' system property to {}", launch4jToolchain.getBinDir());
+				System.setProperty("launch4j.bindir", launch4jToolchain.getBinDir().toString());
+			}
+		}
+		return launch4jToolchain.getBaseDir();
+	}
+
+	private Path setLaunch4JTmpDir() {
 		try {
 			final Path tmpDir = addTempFile(Files.createTempDirectory("capsule-launch4j-tmp-"));
 			log.debug("Creating and setting launch4j temp dir {}", tmpDir.toAbsolutePath().normalize().toString());
@@ -322,98 +1078,40 @@ public class NativeCapsule {
 		}
 	}
 
-	private static Path setLaunch4JLibDir() {
-		try {
-			final Path libDir = findOwnJarFile(NativeCapsule.class).toAbsolutePath().getParent().resolve("w32api");
-			final String[] linkFiles = new String[] {
-				"crt2.o", "libadvapi32.a", "libgcc.a", "libkernel32.a", "libmingw32.a",
-				"libmsvcrt.a", "libshell32.a", "libuser32.a"
-			};
-			log.debug("Copying launch4j w32api linkfiles {} to {}", Arrays.toString(linkFiles), libDir.toAbsolutePath().normalize().toString());
-
-			if (Files.exists(libDir))
-				Capsule.delete(libDir);
-			addTempFile(Files.createDirectory(libDir));
-
-			for (final String f : linkFiles)
-				copy(f, "w32api", libDir);
-
-			return libDir;
-		} catch (IOException e) {
-			throw new RuntimeException("Could not extract libraries necessary for building a Windows executable", e);
-		}
-	}
-
-	private static Path setLaunch4JHeadDir() {
-		try {
-			final Path libDir = findOwnJarFile(NativeCapsule.class).toAbsolutePath().getParent().resolve("head");
-			final String[] headFiles = new String[] { "consolehead.o", "guihead.o", "head.o" };
-			log.debug("Copying launch4j headers {} to {}", Arrays.toString(headFiles), libDir.toAbsolutePath().normalize().toString());
-
-			if (Files.exists(libDir))
-				Capsule.delete(libDir);
-			addTempFile(Files.createDirectory(libDir));
-
-			for (final String f : headFiles)
-				copy(f, "head", libDir);
-
-			return libDir;
-		} catch (IOException e) {
-			throw new RuntimeException("Could not extract libraries necessary for building a Windows executable", e);
-		}
-	}
-
-	private static void setLaunch4JBinDir() {
-		if (Platform.myPlatform().isMac())
-			copyLaunch4JBins("mac", new String[]{"ld", "windres"});
-		else if (Platform.myPlatform().isLinux())
-			copyLaunch4JBins("linux", new String[]{"ld", "windres"});
-		else if (Platform.myPlatform().isWindows())
-			copyLaunch4JBins("windows", new String[]{"ld.exe", "windres.exe"});
-		else if (Platform.myPlatform().isUnix())
-			log.warn("Detected non-Linux Unix platform, assuming launch4j's 'ld' and 'windres' can be found on the path");
-		else
-			throw new RuntimeException(Platform.myPlatform() + " is not supported");
-	}
+	Path buildUnixApp(Path out) throws IOException { // package-private for the benchmarks
+		log.debug("Building native Unix app: {}", out);
 
-	private static Path copyLaunch4JBins(String os, String[] bins) {
-		try {
-			final Path binDir = addTempFile(Files.createTempDirectory("capsule-launch4j-bin-"));
-			log.debug("Copying launch4j binaries {} for platform {} to {} and setting 'launch4j.bindir' system property", Arrays.toString(bins), os, binDir.toAbsolutePath().normalize().toString());
-			for (String filename : bins)
-				ensureExecutable(copy(filename, "bin/" + os, binDir));
-			System.setProperty("launch4j.bindir", binDir.toString());
-			return binDir;
-		} catch (IOException e) {
-			throw new RuntimeException("Could not extract binaries necessary for building a Windows executable", e);
+		String java = "java";
+		Path runtime = null;
+		if (getRuntimeJmods(Platform.OS_UNIX) != null) {
+			runtime = linkRuntime(Platform.OS_UNIX, getRuntimeDir(out, Platform.OS_UNIX));
+			java = "\"$0-runtime-" + Platform.OS_UNIX + "/bin/java\""; // next to the executable
 		}
-	}
 
-	private static Path copy(String fileName, String resourceDir, Path targetDir) throws IOException {
-		log.debug("Copying resource {} to {}", resourceDir + '/' + fileName, targetDir);
-		try (InputStream in = NativeCapsule.class.getClassLoader().getResourceAsStream(resourceDir + '/' + fileName);
-		     OutputStream out = Files.newOutputStream(targetDir.resolve(fileName))) {
-			copy(in, out);
-			return targetDir.resolve(fileName);
+		try (BuildMetrics.Phase ph = phase(Platform.OS_UNIX, "jar-rewrite")) {
+			final JarRewriter jar = createJar();
+			makeUnixExecutable(jar, java);
+			if (isBundlingDependencies())
+				bundleDependencies(jar);
+			if (desc.gui)
+				makeGUICapsule(jar);
+			if (cds)
+				addAppCDS(jar);
+			if (isCachingUnixLaunch())
+				addLaunchCache(jar);
+			writeJar(jar, out);
+			ph.read(sizeOf(inCapsulePath)).written(sizeOf(out));
 		}
-	}
-
-	private static Path buildUnixApp(Path out) throws IOException {
-		log.debug("Building native Unix app: {}", out);
-
-		final Jar jar = createJar(out);
-		makeUnixExecutable(jar);
-		if (isGUIApp())
-			makeGUICapsule(jar);
-		jar.close();
 		ensureExecutable(out);
+		if (cds)
+			trainCDS(Platform.OS_UNIX, out, runtime);
 
 		log.debug("Unix native app build complete");
 
 		return out;
 	}
 
-	private static Path buildMacApp(Path out) throws IOException {
+	Path buildMacApp(Path out) throws IOException { // package-private for the benchmarks
 		out = withSuffix(out, ".app");
 
 		log.debug("Building native Mac OS X app: {}", out);
@@ -423,7 +1121,8 @@ public class NativeCapsule {
 
 		final Path contents = out.resolve("Contents");
 		Files.createDirectory(contents);
-		try (PrintWriter info = new PrintWriter(Files.newBufferedWriter(contents.resolve("Info.plist"), Charset.forName("UTF-8")))) {
+		try (BuildMetrics.Phase ph = phase(Platform.OS_MACOS, "info-plist");
+			 PrintWriter info = new PrintWriter(Files.newBufferedWriter(contents.resolve("Info.plist"), Charset.forName("UTF-8")))) {
 			writeInfo(info);
 		}
 
@@ -432,52 +1131,53 @@ public class NativeCapsule {
 		final Path macos = contents.resolve("MacOS");
 		Files.createDirectory(macos);
 		final Path outJarPath = macos.resolve(getSimpleCapsuleName());
-		final Jar jar = createJar(outJarPath);
-		if (inCapsule.hasAttribute(Attribute.named(ATTR_ICON))) {
-			final URLClassLoader urlClassLoader = new URLClassLoader( new URL[] { inCapsulePath.toUri().toURL() } );
-			InputStream input = null;
-			String resName = null;
-			try {
-				resName = inCapsule.getAttribute(Attribute.<String>named(ATTR_ICON)) + ".icns";
-				log.debug("Mac OS X: attempting to use icon {}", resName);
-				input = urlClassLoader.getResourceAsStream(resName);
-			} catch (Throwable ignored) {
-				log.info("Mac OS X: icon resource {} can't be opened, omitting", resName);
-			}
-			if (resName != null && input != null) {
-				boolean success = false;
-				long copied;
-				try {
-					final Path iconOut = resources.resolve(resName);
-					log.debug("Mac OS X: copying icon resource to {}", iconOut);
-					copied = Files.copy(input, iconOut);
-					if (copied > 0) {
-						log.debug("Mac OS X: icon copied successfully to resource to {}, bytes {}", iconOut.toString(), copied);
-						success = true;
-					}
-				} catch (IOException ioe) {
-					log.info("Mac OS X: icon resource can't be copied successfully to {}, error: {}", resName, ioe.getMessage());
-				} finally {
-					input.close();
-					if (!success)
-						log.info("Windows: icon resource {} can't be read, omitting", resName);
+		String java = "java";
+		Path runtime = null;
+		if (getRuntimeJmods(Platform.OS_MACOS) != null) {
+			runtime = linkRuntime(Platform.OS_MACOS, contents.resolve("runtime"));
+			java = "\"${0%/*}/../runtime/bin/java\"";
+		}
+		final JarRewriter jar = createJar();
+		if (desc.icon != null) {
+			final String resName = desc.icon + ".icns";
+			log.debug("Mac OS X: attempting to use icon {}", resName);
+			try (BuildMetrics.Phase ph = phase(Platform.OS_MACOS, "icon-copy")) {
+				final Path iconOut = resources.resolve(resName);
+				log.debug("Mac OS X: copying icon resource to {}", iconOut);
+				final long copied = this.resources.copy(resName, iconOut);
+				if (copied >= 0) {
+					ph.read(copied).written(copied);
+					log.debug("Mac OS X: icon copied successfully to resource to {}, bytes {}", iconOut.toString(), copied);
+				} else {
+					log.info("Mac OS X: icon resource {} can't be found, omitting", resName);
 				}
-			} else {
-				log.info("Mac OS X: icon resource {} can't be found, omitting", resName);
+			} catch (IOException ioe) {
+				log.info("Mac OS X: icon resource can't be copied successfully to {}, error: {}", resName, ioe.getMessage());
 			}
 		}
-		makeUnixExecutable(jar);
-		if (isGUIApp())
-			makeGUICapsule(jar);
-		jar.close();
+		try (BuildMetrics.Phase ph = phase(Platform.OS_MACOS, "jar-rewrite")) {
+			makeUnixExecutable(jar, java);
+			if (isBundlingDependencies())
+				bundleDependencies(jar);
+			if (desc.gui)
+				makeGUICapsule(jar);
+			if (cds)
+				addAppCDS(jar);
+			if (isCachingUnixLaunch())
+				addLaunchCache(jar);
+			writeJar(jar, outJarPath);
+			ph.read(sizeOf(inCapsulePath)).written(sizeOf(outJarPath));
+		}
 		ensureExecutable(outJarPath);
+		if (cds)
+			trainCDS(Platform.OS_MACOS, outJarPath, runtime);
 
 		log.debug("Mac OS X native app build complete");
 
 		return out;
 	}
 
-	private static void writeInfo(PrintWriter out) {
+	void writeInfo(PrintWriter out) { // package-private for the benchmarks
 		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
 		out.println("<!DOCTYPE plist PUBLIC \"-//Apple Computer//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">");
 		out.println("<plist version=\"1.0\">");
@@ -487,16 +1187,16 @@ public class NativeCapsule {
 		out.println("  <key>CFBundleExecutable</key>");
 		out.println("  <string>" + getSimpleCapsuleName() + "</string>");
 		out.println("  <key>CFBundleIdentifier</key>");
-		out.println("  <string>" + inCapsule.getAttribute(Attribute.named(Capsule.ATTR_APP_NAME.getKey())) + "</string>");
+		out.println("  <string>" + desc.appName + "</string>");
 		out.println("  <key>CFBundleName</key>");
-		out.println("  <string>" + inCapsule.getAttribute(Attribute.named(Capsule.ATTR_APP_NAME.getKey())) + "</string>");
-		if (inCapsule.hasAttribute(Attribute.named(ATTR_ICON))) {
+		out.println("  <string>" + desc.appName + "</string>");
+		if (desc.icon != null) {
 			out.println("  <key>CFBundleIconFile</key>");
-			out.println("  <string>" + inCapsule.getAttribute(Attribute.named(ATTR_ICON)) + "</string>");
+			out.println("  <string>" + desc.icon + "</string>");
 		}
-		if (inCapsule.hasAttribute(Attribute.named(Capsule.ATTR_APP_VERSION.getKey()))) {
+		if (desc.appVersion != null) {
 			out.println("  <key>CFBundleShortVersionString</key>");
-			out.println("  <string>" + inCapsule.getAttribute(Attribute.named(Capsule.ATTR_APP_VERSION.getKey())) + "</string>");
+			out.println("  <string>" + desc.appVersion + "</string>");
 		}
 		out.println("  <key>CFBundleShortVersionString</key>");
 		out.println("  <string>1.0</string>");
@@ -510,53 +1210,181 @@ public class NativeCapsule {
 		out.println("</plist>");
 	}
 
-	private static Jar makeUnixExecutable(Jar jar) {
+	/**
+	 * @param java The command starting the Java executable, as a shell word
+	 */
+	private JarRewriter makeUnixExecutable(JarRewriter jar, String java) throws IOException {
 		log.debug("Setting JAR prefix as native Unix executable");
-		return jar.setJarPrefix("#!/bin/sh\n\nexec java -jar $0 \"$@\"\n");
+		final StringBuilder prefix = new StringBuilder("#!/bin/sh\n\n");
+		if (isCachingUnixLaunch()) {
+			// the cache written by LaunchCacheCapsule, if it matches this build, JAVA_HOME and the installed files
+			prefix.append("c=\"$0" + LaunchCacheCapsule.LAUNCH_CACHE_SUFFIX + "\"\n")
+				.append("if [ -f \"$c\" ] && [ ! \"$0\" -nt \"$c\" ] && . \"$c\" && [ \"$k\" = \"" + getInCapsuleHash() + "\" ] && [ \"$h\" = \"$JAVA_HOME\" ] && v; then\n")
+				.append("\tl \"$@\"\n")
+				.append("fi\n");
+		}
+		prefix.append("exec ").append(java).append(' ');
+		if (cds) {
+			for (final String opt : ClassDataSharing.getJvmOptions("\"$0" + ClassDataSharing.ARCHIVE_SUFFIX + "\""))
+				prefix.append(opt).append(' ');
+		}
+		return jar.setJarPrefix(prefix.append("-jar $0 \"$@\"\n").toString());
 	}
 
-	private static Jar makeGUICapsule(Jar jar) throws IOException {
-		log.debug("Making a GUI capsule");
+	/**
+	 * Whether the Unix and Mac OS X binaries cache the launch command. Single-instance GUI launches must go through
+	 * {@code GUICapsule}, which passes them to the running instance, so they aren't cached.
+	 */
+	private boolean isCachingUnixLaunch() {
+		return execCache && !(desc.gui && desc.singleInstance);
+	}
 
-		List<String> caplets = inCapsule.getAttribute(Attribute.<List<String>>named(Capsule.ATTR_CAPLETS.getKey()));
-		//noinspection Convert2Diamond
-		caplets = caplets == null ? new ArrayList<String>() : new ArrayList<String>(caplets);
-
-		log.debug("GUI: adding {}", GUI_CAPSULE_NAME);
-		caplets.add(GUI_CAPSULE_NAME);
-
-		boolean usesMaven = false;
-		for (Class<?> c : inCapsule.getCaplets()) {
-			if (CapletUtil.isSubclass(c, MAVEN_CAPSULE_NAME)) {
-				// The 2-stage Capsule lookup/resolve rule is:
-				//
-				// | Each `lookup` / `resolve`-customizing capsule must return from `lookup` values that only its own
-				// | `resolve` can handle. Else (f.e. when extending `MavenCapsule`) the capsule-building process must
-				// | make sure that only one of the capsules that can `resolve` the same `lookup` values is present
-				// | in the chain.
-
-				log.debug("GUI: removing non-GUI Maven caplet {}", c.getName());
-				if (caplets.remove(c.getName()))
-					log.debug("GUI: successfully removed non-GUI Maven caplet {}", c.getName());
-				usesMaven = true;
-			}
+	private JarRewriter addLaunchCache(JarRewriter jar) throws IOException {
+		log.debug("Adding the launch cache caplet");
+		final List<String> caplets = new ArrayList<>(desc.getCaplets(isBundlingDependencies()));
+		caplets.add(LaunchCacheCapsule.class.getName()); // last, so that it sees the final command line
+		jar.setListAttribute(Capsule.ATTR_CAPLETS.getKey(), caplets);
+		jar.setListAttribute(ATTR_LAUNCH_CACHE_KEY, Collections.singletonList(getInCapsuleHash()));
+		jar.addClass(LaunchCacheCapsule.class);
+		jar.addClass(DirectLauncher.class);
+		return jar;
+	}
+
+	/**
+	 * Makes the application's JVM, which the launcher's archive doesn't cover, use an archive of its own.
+	 */
+	private JarRewriter addAppCDS(JarRewriter jar) {
+		log.debug("Adding the application JVM's CDS options");
+		final List<String> jvmArgs = new ArrayList<>(desc.jvmArgs);
+		jvmArgs.addAll(ClassDataSharing.getAppJvmOptions());
+		jar.setListAttribute(Capsule.ATTR_JVM_ARGS.getKey(), jvmArgs);
+		return jar;
+	}
+
+	/**
+	 * @param runtime The bundled runtime image the executable uses, or {@code null}
+	 */
+	private void trainCDS(String platform, Path executable, Path runtime) throws IOException {
+		final Path archive = executable.toAbsolutePath().getParent().resolve(executable.getFileName().toString() + ClassDataSharing.ARCHIVE_SUFFIX);
+		final Path java = runtime != null ? runtime.resolve("bin").resolve("java") : null;
+		if (runtime != null && !(getHostPlatform().equals(platform) && Files.isExecutable(java))) {
+			log.info("The runtime image {} can't be run here, {} will be created on first launch", runtime, archive);
+			return;
 		}
-		if (usesMaven) {
-			log.debug("GUI: adding GUI Maven caplet {}", GUI_MAVEN_CAPSULE_NAME);
-			caplets.add(GUI_MAVEN_CAPSULE_NAME);
+		log.debug("Training CDS archive {}", archive);
+		try (BuildMetrics.Phase ph = phase(platform, "cds-training")) {
+			// resolving unbundled dependencies would download them into this machine's local repository
+			final boolean resolve = !desc.hasMavenCaplet || isBundlingDependencies();
+			if (java != null ? ClassDataSharing.train(executable, archive, java, resolve) : ClassDataSharing.train(executable, archive, resolve))
+				ph.written(sizeOf(archive));
 		}
+	}
+
+	private static Path getRuntimeDir(Path out, String platform) {
+		return out.toAbsolutePath().getParent().resolve(out.getFileName().toString() + "-runtime-" + platform);
+	}
+
+	private Path linkRuntime(String platform, Path dir) throws IOException {
+		final Set<String> modules = getRuntimeModules();
+		try (BuildMetrics.Phase ph = phase(platform, "runtime-link")) {
+			RuntimeImage.link(getRuntimeJmods(platform), modules, dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * The modules used by the capsule, its embedded JARs and its dependencies, and by the caplets added to it.
+	 */
+	private synchronized Set<String> getRuntimeModules() throws IOException {
+		if (runtimeModules == null) {
+			final List<Path> jars = new ArrayList<>();
+			jars.add(inCapsulePath);
+			if (isBundlingDependencies())
+				jars.addAll(getBundledDependencies().values());
+			try (BuildMetrics.Phase ph = phase(null, "runtime-modules")) {
+				try (ZipFile zf = new ZipFile(inCapsulePath.toFile())) {
+					final Path dir = addTempFile(Files.createTempDirectory("capsule-runtime-jars-"));
+					for (final Enumeration<? extends ZipEntry> es = zf.entries(); es.hasMoreElements();) {
+						final ZipEntry e = es.nextElement();
+						if (!e.isDirectory() && e.getName().endsWith(".jar")) {
+							final Path jar = dir.resolve(jars.size() + "-" + Paths.get(e.getName()).getFileName());
+							try (InputStream is = zf.getInputStream(e)) {
+								ph.written(IOUtil.copy(is, jar));
+							}
+							jars.add(jar);
+						}
+					}
+				}
 
-		jar.setListAttribute("Caplets", caplets);
+				final List<String> extra = new ArrayList<>();
+				if (desc.gui)
+					extra.add("java.desktop"); // GUI caplets
+				if (execCache)
+					extra.add("java.management"); // DirectLauncher
+				if (desc.gui && desc.singleInstance)
+					extra.add("java.instrument"); // SingleInstanceAgent
+				if (!desc.dependencies.isEmpty() && !isBundlingDependencies()) {
+					final List<String> modules = desc.runtimeModules != null ? desc.runtimeModules : DEFAULT_DEPENDENCY_MODULES;
+					log.info("The dependencies of {} are resolved when launched; adding the modules {} for them", inCapsulePath, modules);
+					extra.addAll(modules);
+				}
+				runtimeModules = RuntimeImage.findModules(jars, extra);
+			}
+			log.info("Runtime image modules: {}", runtimeModules);
+		}
+		return runtimeModules;
+	}
+
+	JarRewriter makeGUICapsule(JarRewriter jar) throws IOException { // package-private for the benchmarks
+		log.debug("Making a GUI capsule");
+
+		final boolean bundled = isBundlingDependencies();
+		jar.setListAttribute("Caplets", desc.getGUICaplets(bundled));
+		if (desc.splash != null) {
+			// shown by the JVM straight from the JAR as soon as the capsule is launched with -jar
+			log.debug("GUI: setting JVM splash screen image {}", desc.splash);
+			jar.setListAttribute(ATTR_JAVA_SPLASH, Collections.singletonList(desc.splash));
+		}
 
 		// jar.addClass(NativeCapsule.class);
 		jar.addClass(GUICapsule.class);
-		if (inCapsule.hasCaplet(MAVEN_CAPSULE_NAME)) {
+		jar.addClass(SingleInstanceAgent.class); // the agent enforcing a single instance on Unix and Mac OS X
+		if (desc.hasMavenCaplet && !bundled) {
 			jar.addEntry("GUIMavenCapsule.class", NativeCapsule.class.getResourceAsStream("GUIMavenCapsule.class"));
-			jar.addPackageOf(GUIListener.class, Jar.matches("capsule/((GUIDependencyManager)|(GUIListener)).*"));
+			jar.addPackageOf(GUIListener.class, "capsule/((GUIDependencyManager)|(GUIListener)).*");
 		}
 		return jar;
 	}
 
+	private JarRewriter bundleDependencies(JarRewriter jar) throws IOException {
+		final Map<String, Path> deps = getBundledDependencies();
+		log.debug("Embedding {} dependencies", deps.size());
+		for (final Map.Entry<String, Path> d : deps.entrySet())
+			jar.addEntry(d.getKey(), d.getValue());
+
+		final List<String> classPath = new ArrayList<>(desc.appClassPath);
+		classPath.addAll(deps.keySet());
+		jar.setListAttribute(ATTR_APP_CLASS_PATH, classPath);
+		jar.setListAttribute(ATTR_EXTRACT, Collections.singletonList("true")); // embedded JARs must be extracted
+		jar.removeAttribute(ATTR_DEPENDENCIES);
+		if (desc.caplets.isEmpty())
+			jar.removeAttribute(Capsule.ATTR_CAPLETS.getKey());
+		else
+			jar.setListAttribute(Capsule.ATTR_CAPLETS.getKey(), desc.caplets); // no Maven caplets, replaced by GUI ones if GUI
+		return jar;
+	}
+
+	private synchronized Map<String, Path> getBundledDependencies() {
+		if (bundledDependencies == null) {
+			try (BuildMetrics.Phase ph = phase(null, "dependency-resolve")) {
+				bundledDependencies = DependencyBundler.resolve(desc.dependencies, desc.repositories, desc.allowSnapshots, DependencyBundler.getDefaultLocalRepo());
+				for (final Path p : bundledDependencies.values())
+					ph.read(sizeOf(p));
+			}
+		}
+		return bundledDependencies;
+	}
+
 	private static Path withSuffix(Path path, String suffix) {
 		return path.getFileName().toString().endsWith(suffix) ?
 			path : path.toAbsolutePath().getParent().resolve(path.getFileName().toString() + suffix);
@@ -579,13 +1407,6 @@ public class NativeCapsule {
 		}
 	}
 
-	protected static void copy(InputStream is, OutputStream out) throws IOException {
-		final byte[] buffer = new byte[1024];
-		for (int bytesRead ; (bytesRead = is.read(buffer)) != -1 ; )
-			out.write(buffer, 0, bytesRead);
-		out.flush();
-	}
-
 	private static Path ensureExecutable(Path file) {
 		log.debug("Ensuring executable: {}", file.toAbsolutePath().normalize().toString());
 		if (!Files.isExecutable(file)) {
@@ -603,7 +1424,19 @@ public class NativeCapsule {
 		return file;
 	}
 
-	private static Path addTempFile(Path file) {
+	private BuildMetrics.Phase phase(String platform, String name) {
+		return metrics.start(inCapsulePath.toAbsolutePath().normalize().toString(), platform, name);
+	}
+
+	private static long sizeOf(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private Path addTempFile(Path file) {
 		log.debug("Adding temp file: {}", file.toAbsolutePath().normalize().toString());
 		tmpFiles.add(file);
 		return file;
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a GUI application to a single instance on Unix and Mac OS X, passing the arguments of later launches to the
+ * running one.
+ * <p>
+ * This class is the Java agent {@link GUICapsule} starts the application with. It locks a file in the instance
+ * directory for as long as the application runs, and listens on a loopback port, written with a random token to the
+ * directory's {@code port} file, for the arguments that later launches send instead of starting another JVM. They
+ * are passed to the static {@code (String[])} method named in the agent's options, if any, and ignored otherwise.
+ * <p>
+ * An application launched too early for {@link GUICapsule} to see the running instance finds the lock taken here,
+ * passes its own arguments on and exits before its main class runs.
+ */
+public final class SingleInstanceAgent implements Runnable {
+    private static final String LOCK_FILE = "lock";
+    private static final String PORT_FILE = "port";
+    private static final int ACK = 1;
+    private static final int MAX_ARGS = 65536;
+    private static final int CONNECT_TIMEOUT = 500; // ms
+    private static final int READ_TIMEOUT = 5000; // ms
+    private static final long STARTUP_TIMEOUT = 3000; // ms; the running instance may not be listening yet
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static FileChannel lock; // held until the JVM exits
+
+    private final ServerSocket server;
+    private final String token;
+    private final String handler;
+
+    private SingleInstanceAgent(ServerSocket server, String token, String handler) {
+        this.server = server;
+        this.token = token;
+        this.handler = handler;
+    }
+
+    /**
+     * The agent's options.
+     *
+     * @param handler The static method, as {@code <class>.<method>}, the arguments of later launches are passed to, or
+     *                {@code null}
+     * @param args    The application's arguments, passed to the running instance if another one is launched at the same
+     *                time
+     * @param dir     The instance directory
+     */
+    static String getAgentOptions(String handler, List<String> args, Path dir) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(handler != null ? handler : "").append(',').append(args.size());
+        try {
+            for (final String a : args)
+                sb.append(';').append(URLEncoder.encode(a, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return sb.append(',').append(dir.toAbsolutePath()).toString();
+    }
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+        final String[] options = agentArgs.split(",", 3); // handler,count;arg;...,dir
+        final String handler = options[0];
+        final Path dir = Paths.get(options[2]);
+        try {
+            Files.createDirectories(dir);
+            for (;;) {
+                final FileChannel ch = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (ch.tryLock() != null) {
+                    lock = ch;
+                    break;
+                }
+                ch.close();
+
+                // another instance was launched at the same time
+                try {
+                    if (forward(dir, decodeArgs(options[1])))
+                        System.exit(0);
+                    // it has exited since; take its place
+                } catch (IOException e) {
+                    System.err.println("CAPSULE: Another instance of the application is running but can't be reached: " + e);
+                    System.exit(1);
+                }
+            }
+
+            final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final String token = newToken();
+            final Path tmp = Files.createTempFile(dir, ".port-", ".tmp"); // only readable by the user
+            try {
+                try (Writer w = Files.newBufferedWriter(tmp, UTF8)) {
+                    w.write(server.getLocalPort() + " " + token + "\n");
+                }
+                Files.move(tmp, dir.resolve(PORT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+
+            final Thread t = new Thread(new SingleInstanceAgent(server, token, handler.isEmpty() ? null : handler), "capsule-single-instance");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException e) {
+            System.err.println("CAPSULE: Later launches can't be passed to this instance: " + e);
+        }
+    }
+
+    private static List<String> decodeArgs(String encoded) throws UnsupportedEncodingException {
+        final String[] parts = encoded.split(";", -1);
+        final List<String> args = new ArrayList<>();
+        for (int i = 1; i <= Integer.parseInt(parts[0]); i++)
+            args.add(URLDecoder.decode(parts[i], "UTF-8"));
+        return args;
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            final List<String> args;
+            try (Socket s = server.accept()) {
+                s.setSoTimeout(READ_TIMEOUT);
+                args = receive(s);
+            } catch (IOException e) {
+                continue;
+            }
+            if (args != null && handler != null)
+                dispatch(args);
+        }
+    }
+
+    private List<String> receive(Socket s) throws IOException {
+        final DataInputStream in = new DataInputStream(s.getInputStream());
+        if (!token.equals(in.readUTF()))
+            return null;
+        final int n = in.readInt();
+        if (n < 0 || n > MAX_ARGS)
+            return null;
+        final List<String> args = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            args.add(in.readUTF());
+
+        final DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeByte(ACK);
+        out.flush();
+        return args;
+    }
+
+    private void dispatch(List<String> args) {
+        final int dot = handler.lastIndexOf('.');
+        try {
+            final Method m = Class.forName(handler.substring(0, dot), true, ClassLoader.getSystemClassLoader())
+                    .getMethod(handler.substring(dot + 1), String[].class);
+            m.invoke(null, (Object) args.toArray(new String[args.size()]));
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("CAPSULE: Single-instance handler " + handler + " could not be called: " + e);
+        }
+    }
+
+    /**
+     * Passes the arguments of a launch to the running instance, if there is one.
+     *
+     * @param dir  The instance directory
+     * @param args The launch's arguments
+     * @return {@code true} if the running instance has received them; {@code false} if no instance is running
+     * @throws IOException if an instance is running but can't be reached
+     */
+    static boolean forward(Path dir, List<String> args) throws IOException {
+        if (!isRunning(dir))
+            return false;
+
+        final long deadline = System.nanoTime() + STARTUP_TIMEOUT * 1000000L;
+        for (;;) {
+            try {
+                send(dir, args);
+                return true;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline || !isRunning(dir))
+                    throw e;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while connecting to the running instance", e);
+            }
+        }
+    }
+
+    private static boolean isRunning(Path dir) throws IOException {
+        final Path file = dir.resolve(LOCK_FILE);
+        if (!Files.exists(file))
+            return false;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            final FileLock l = ch.tryLock();
+            if (l == null)
+                return true;
+            l.release();
+            return false;
+        }
+    }
+
+    private static void send(Path dir, List<String> args) throws IOException {
+        final String[] port = new String(Files.readAllBytes(dir.resolve(PORT_FILE)), UTF8).trim().split(" ");
+        if (port.length != 2)
+            throw new IOException("Malformed " + dir.resolve(PORT_FILE));
+
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port[0])), CONNECT_TIMEOUT);
+            s.setSoTimeout(READ_TIMEOUT);
+            final DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeUTF(port[1]);
+            out.writeInt(args.size());
+            for (final String a : args)
+                out.writeUTF(a);
+            out.flush();
+            if (new DataInputStream(s.getInputStream()).read() != ACK)
+                throw new IOException("The running instance didn't acknowledge the launch"); // e.g. a stale port file
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + dir.resolve(PORT_FILE), e);
+        }
+    }
+
+    private static String newToken() {
+        final byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+}
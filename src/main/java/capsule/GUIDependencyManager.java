@@ -8,24 +8,135 @@
 package capsule;
 
 import capsule.org.eclipse.aether.AbstractForwardingRepositorySystemSession;
+import capsule.org.eclipse.aether.AbstractRepositoryListener;
 import capsule.org.eclipse.aether.DefaultRepositorySystemSession;
+import capsule.org.eclipse.aether.RepositoryEvent;
 import capsule.org.eclipse.aether.RepositoryListener;
 import capsule.org.eclipse.aether.RepositorySystem;
 import capsule.org.eclipse.aether.RepositorySystemSession;
 import capsule.org.eclipse.aether.repository.LocalRepository;
 import capsule.org.eclipse.aether.transfer.TransferListener;
+import capsule.org.eclipse.aether.util.listener.ChainedRepositoryListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  *
  * @author pron
  */
 public class GUIDependencyManager extends DependencyManager {
+    // The number of concurrent downloads of Aether's basic repository connector
+    private static final String PROP_CONNECTOR_THREADS = "aether.connector.basic.threads";
+
+    /**
+     * The default time for which resolutions involving snapshots or version ranges are reused.
+     */
+    public static final long DEFAULT_RESOLUTION_CACHE_TTL = 24 * 60 * 60 * 1000L;
+
     private final GUIListener listener;
+    private final int downloadThreads;
+    private final ResolutionCache cache;
+    private final boolean forceRefresh;
+    private List<String> repos;
+    private boolean allowSnapshots;
+    private volatile boolean metadataResolved;
+
+    // Versions are resolved from repository metadata only for snapshots, ranges, LATEST and RELEASE, anywhere in the graph
+    private final RepositoryListener metadataListener = new AbstractRepositoryListener() {
+        @Override
+        public void metadataResolved(RepositoryEvent event) {
+            metadataResolved = true;
+        }
+    };
 
     public GUIDependencyManager(GUIListener listener, Path localRepoPath, boolean forceRefresh, int logLevel) {
+        this(listener, localRepoPath, forceRefresh, logLevel, 0);
+    }
+
+    /**
+     * @param downloadThreads the number of artifacts downloaded concurrently, or {@code 0} for Aether's default
+     */
+    public GUIDependencyManager(GUIListener listener, Path localRepoPath, boolean forceRefresh, int logLevel, int downloadThreads) {
         super(localRepoPath, forceRefresh, logLevel);
         this.listener = listener;
+        this.downloadThreads = downloadThreads;
+        this.forceRefresh = forceRefresh;
+        this.cache = localRepoPath != null ? new ResolutionCache(localRepoPath.resolve(".resolution-cache")) : null;
+    }
+
+    /**
+     * Sets the time, in milliseconds, for which cached resolutions involving snapshots or version ranges are reused;
+     * other resolutions are reused as long as the coordinates and repositories don't change. Forced refreshes ignore
+     * the cache but update it.
+     */
+    public GUIDependencyManager setResolutionCacheTTL(long ttl) {
+        if (cache != null)
+            cache.ttl = ttl;
+        return this;
+    }
+
+    @Override
+    public void setRepos(List<String> repos, boolean allowSnapshots) {
+        super.setRepos(repos, allowSnapshots);
+        this.repos = repos;
+        this.allowSnapshots = allowSnapshots;
+    }
+
+    @Override
+    public List<Path> resolveDependencies(List<String> coords, String type) {
+        if (cache == null)
+            return super.resolveDependencies(coords, type);
+
+        final String key = "type=" + type + " coords=" + coords + " repos=" + repos + " snapshots=" + allowSnapshots;
+        final List<Path> cached = forceRefresh ? null : cache.get(key); // a forced refresh updates the cache
+        if (cached != null)
+            return cached;
+
+        metadataResolved = false;
+        final List<Path> resolved = super.resolveDependencies(coords, type);
+        if (resolved != null)
+            cache.put(key, metadataResolved || isVolatile(coords) || hasSnapshots(resolved), resolved);
+        return resolved;
+    }
+
+    // Whether any of the resolved artifacts, direct or transitive, is a snapshot (in a -SNAPSHOT version directory)
+    private static boolean hasSnapshots(List<Path> resolved) {
+        for (final Path p : resolved) {
+            final Path versionDir = p.getParent();
+            if (p.getFileName().toString().contains("SNAPSHOT")
+                    || (versionDir != null && versionDir.getFileName() != null && versionDir.getFileName().toString().contains("SNAPSHOT")))
+                return true;
+        }
+        return false;
+    }
+
+    // Whether resolving the coordinates again might give a different result
+    private static boolean isVolatile(List<String> coords) {
+        for (final String c : coords) {
+            final String[] parts = c.split(":"); // group:artifact:version[:classifier][(exclusions)]
+            if (parts.length < 3)
+                return true; // no version
+            String version = parts[2];
+            if (version.startsWith("[") || version.startsWith("("))
+                return true; // range
+            if (version.indexOf('(') >= 0)
+                version = version.substring(0, version.indexOf('('));
+            if (version.endsWith("SNAPSHOT") || version.equals("LATEST") || version.equals("RELEASE"))
+                return true;
+        }
+        return false;
     }
 
     @Override
@@ -34,7 +145,9 @@ public class GUIDependencyManager extends DependencyManager {
 
         if (s instanceof DefaultRepositorySystemSession) {
             ((DefaultRepositorySystemSession) s).setTransferListener(listener.getTransferListener());
-            ((DefaultRepositorySystemSession) s).setRepositoryListener(listener.getRepositoryListener());
+            ((DefaultRepositorySystemSession) s).setRepositoryListener(ChainedRepositoryListener.newInstance(listener.getRepositoryListener(), metadataListener));
+            if (downloadThreads > 0)
+                ((DefaultRepositorySystemSession) s).setConfigProperty(PROP_CONNECTOR_THREADS, downloadThreads);
         } else {
             return new AbstractForwardingRepositorySystemSession() {
                 @Override
@@ -49,11 +162,98 @@ public class GUIDependencyManager extends DependencyManager {
 
                 @Override
                 public RepositoryListener getRepositoryListener() {
-                    return listener.getRepositoryListener();
+                    return ChainedRepositoryListener.newInstance(listener.getRepositoryListener(), metadataListener);
+                }
+
+                @Override
+                public Map<String, Object> getConfigProperties() {
+                    if (downloadThreads <= 0)
+                        return s.getConfigProperties();
+                    final Map<String, Object> props = new HashMap<>(s.getConfigProperties());
+                    props.put(PROP_CONNECTOR_THREADS, downloadThreads);
+                    return props;
                 }
             };
         }
         return s;
     }
 
+    /**
+     * Resolved classpaths, each kept in a properties file named after the hash of its key.
+     */
+    private static final class ResolutionCache {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final Path dir;
+        long ttl = DEFAULT_RESOLUTION_CACHE_TTL;
+
+        ResolutionCache(Path dir) {
+            this.dir = dir;
+        }
+
+        List<Path> get(String key) {
+            final Path file = dir.resolve(hash(key));
+            if (!Files.isRegularFile(file))
+                return null;
+            try {
+                final Properties props = new Properties();
+                try (InputStream is = Files.newInputStream(file)) {
+                    props.load(is);
+                }
+                if (!key.equals(props.getProperty("key")))
+                    return null;
+                if (Boolean.parseBoolean(props.getProperty("volatile"))
+                        && System.currentTimeMillis() - Long.parseLong(props.getProperty("time")) > ttl)
+                    return null;
+
+                final int count = Integer.parseInt(props.getProperty("count"));
+                final List<Path> paths = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    final Path p = dir.getFileSystem().getPath(props.getProperty("path." + i));
+                    if (!Files.exists(p))
+                        return null; // removed from the local repository
+                    paths.add(p);
+                }
+                return paths;
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        void put(String key, boolean isVolatile, List<Path> paths) {
+            final Properties props = new Properties();
+            props.setProperty("key", key);
+            props.setProperty("volatile", Boolean.toString(isVolatile));
+            props.setProperty("time", Long.toString(System.currentTimeMillis()));
+            props.setProperty("count", Integer.toString(paths.size()));
+            for (int i = 0; i < paths.size(); i++)
+                props.setProperty("path." + i, paths.get(i).toAbsolutePath().toString());
+
+            try {
+                Files.createDirectories(dir);
+                final Path tmp = Files.createTempFile(dir, "resolution-", ".tmp");
+                try {
+                    try (OutputStream os = Files.newOutputStream(tmp)) {
+                        props.store(os, null);
+                    }
+                    Files.move(tmp, dir.resolve(hash(key)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                // the cache is an optimization only
+            }
+        }
+
+        private static String hash(String key) {
+            try {
+                final StringBuilder sb = new StringBuilder();
+                for (final byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8)))
+                    sb.append(String.format("%02x", b));
+                return sb.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
 }
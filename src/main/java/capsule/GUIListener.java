@@ -12,10 +12,21 @@ import capsule.org.eclipse.aether.transfer.AbstractTransferListener;
 import capsule.org.eclipse.aether.transfer.TransferCancelledException;
 import capsule.org.eclipse.aether.transfer.TransferEvent;
 import capsule.org.eclipse.aether.transfer.TransferListener;
+import capsule.org.eclipse.aether.transfer.TransferResource;
 import java.awt.BorderLayout;
+import java.awt.Dimension;
 import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
@@ -24,99 +35,220 @@ import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
+import javax.swing.text.BadLocationException;
 
 /**
  *
  * @author pron
  */
 public class GUIListener {
+    /**
+     * The default time, in milliseconds, after which the progress window is shown if downloads are still going on.
+     */
+    public static final long DEFAULT_SHOW_DELAY = 1000;
+
+    private static final int PROGRESS_UPDATES_PER_SECOND = 10;
+    private static final int MAX_LOG_LINES = 500;
+
     private final long start;
+    private final long showDelay;
 
-    private volatile JFrame frame;
-    private JPanel content;
-    private JProgressBar progress;
-    private final JTextArea text;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
     private final String name;
     private final String icon;
+    private final TextAreaLog log = new TextAreaLog(MAX_LOG_LINES);
     private final RepositoryListener repositoryListener;
     private final TransferListener transferListener;
+    private final TransferProgress transfers = new TransferProgress();
     private volatile boolean disposed;
 
+    // The window is created lazily; these are accessed on the EDT only
+    private JFrame frame;
+    private JProgressBar progress;
+    private Timer progressTimer;
+    private long lastProgressBytes;
+    private long lastProgressNanos;
+    private double bytesPerSecond;
+
     public GUIListener(String name, String icon) {
+        this(name, icon, true);
+    }
+
+    /**
+     * @param showWindow whether the progress window is shown when downloads take long
+     */
+    public GUIListener(String name, String icon, boolean showWindow) {
+        this(name, icon, showWindow ? DEFAULT_SHOW_DELAY : -1);
+    }
+
+    /**
+     * @param showDelay the time, in milliseconds since construction, after which the progress window is shown if
+     *                  downloads are still going on, or a negative value if it's never to be shown
+     */
+    public GUIListener(String name, String icon, long showDelay) {
         this.start = System.nanoTime();
+        this.showDelay = showDelay;
+        this.disposed = showDelay < 0;
         this.name = name;
         this.icon = icon;
 
-        this.text = new JTextArea(5, 20);
-        text.setMargin(new Insets(5, 5, 5, 5));
-        text.setEditable(false);
-
-        progress = new JProgressBar(0, 100);
-        progress.setValue(0);
-        progress.setStringPainted(true);
-
-        this.repositoryListener = new ConsoleRepositoryListener(false, new PrintStream(new TextAreaOutputStream(text)));
+        this.repositoryListener = new ConsoleRepositoryListener(false, new PrintStream(log));
+        // Transfer events come from Aether's threads, possibly thousands per artifact: they only update counters,
+        // which the timer publishes to the progress bar on the EDT a few times per second
         this.transferListener = new AbstractTransferListener() {
 
             @Override
             public void transferInitiated(TransferEvent te) throws TransferCancelledException {
                 init();
-                progress.setIndeterminate(true);
+                transfers.initiated(te.getResource());
             }
 
             @Override
-            public void transferStarted(TransferEvent event) throws TransferCancelledException {
+            public void transferStarted(TransferEvent te) throws TransferCancelledException {
                 init();
-                progress.setIndeterminate(false);
-                progress.setMaximum(100);
+                transfers.started(te.getResource());
             }
 
             @Override
             public void transferProgressed(TransferEvent te) throws TransferCancelledException {
-                init();
-                progress.setValue((int) (100.0 * (double) te.getTransferredBytes() / (double) te.getResource().getContentLength()));
+                transfers.progressed(te.getResource(), te.getTransferredBytes());
             }
 
             @Override
             public void transferSucceeded(TransferEvent te) {
-                progress.setValue(100);
+                transfers.succeeded(te.getResource(), te.getTransferredBytes());
+            }
+
+            @Override
+            public void transferFailed(TransferEvent te) {
+                transfers.failed(te.getResource());
             }
         };
+
+        if (!disposed)
+            startDaemon("capsule-gui-prewarm", new Runnable() {
+                @Override
+                public void run() {
+                    prewarm();
+                }
+            });
     }
 
-    private long elapsedMillis() {
-        return (System.nanoTime() - start) / 1000000;
+    /**
+     * Loads the look and feel and the Swing classes used by the window, without creating any component, so that
+     * showing the window, if it comes to that, is quick.
+     */
+    private static void prewarm() {
+        try {
+            final ClassLoader cl = GUIListener.class.getClassLoader();
+            Class.forName(UIManager.getSystemLookAndFeelClassName(), true, cl);
+            for (final Class<?> c : new Class<?>[]{JFrame.class, JPanel.class, JProgressBar.class, JScrollPane.class, JTextArea.class, Timer.class})
+                Class.forName(c.getName(), true, cl);
+        } catch (Throwable t) {
+            // only an optimization
+        }
     }
 
+    // Called by concurrent transfer threads: the first transfer schedules the window
     private void init() {
-        if (!disposed && frame == null && elapsedMillis() > 1000) {
-            try {
-                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-            } catch (ReflectiveOperationException | UnsupportedLookAndFeelException ex) {
-            }
-
-            SwingUtilities.invokeLater(new Runnable() {
+        if (!disposed && !scheduled.get() && scheduled.compareAndSet(false, true)) {
+            startDaemon("capsule-gui-show", new Runnable() {
                 @Override
                 public void run() {
-                    frame = new JFrame(name);
-                    frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-
-                    if (icon != null)
-                        frame.setIconImage(new ImageIcon(iconFile(icon)).getImage());
-                    
-                    createContent();
-                    content.setOpaque(true);
-                    frame.setContentPane(content);
-
-                    frame.pack();
-                    frame.setVisible(true);
+                    try {
+                        final long remaining = showDelay - elapsedMillis();
+                        if (remaining > 0)
+                            Thread.sleep(remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!disposed)
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                show();
+                            }
+                        });
                 }
             });
         }
     }
 
+    private static void startDaemon(String name, Runnable r) {
+        final Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private void show() {
+        if (disposed)
+            return;
+
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (ReflectiveOperationException | UnsupportedLookAndFeelException ex) {
+        }
+
+        frame = new JFrame(name);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        if (icon != null)
+            frame.setIconImage(new ImageIcon(iconFile(icon)).getImage());
+
+        final JPanel content = createContent();
+        content.setOpaque(true);
+        frame.setContentPane(content);
+
+        frame.pack();
+        frame.setVisible(true);
+
+        updateProgress();
+        progressTimer = new Timer(1000 / PROGRESS_UPDATES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateProgress();
+            }
+        });
+        progressTimer.start();
+    }
+
+    private void updateProgress() {
+        final TransferProgress.Snapshot p = transfers.snapshot();
+
+        final long now = System.nanoTime();
+        if (lastProgressNanos != 0 && now > lastProgressNanos) {
+            final double rate = (p.transferred - lastProgressBytes) * 1e9 / (now - lastProgressNanos);
+            bytesPerSecond = bytesPerSecond == 0 ? rate : 0.8 * bytesPerSecond + 0.2 * rate; // smoothed
+        }
+        lastProgressBytes = p.transferred;
+        lastProgressNanos = now;
+
+        final StringBuilder sb = new StringBuilder();
+        if (p.expected > 0) {
+            progress.setIndeterminate(false);
+            progress.setValue((int) (100 * p.transferredOfExpected / p.expected));
+            sb.append(progress.getValue()).append("% - ");
+        } else
+            progress.setIndeterminate(true);
+        sb.append(p.completed).append('/').append(p.count).append(" files");
+        if (p.completed < p.count && bytesPerSecond > 0) {
+            sb.append(String.format(", %.1f MB/s", bytesPerSecond / (1024 * 1024)));
+            if (p.unknown == 0 && p.expected > p.transferredOfExpected) {
+                final long eta = (long) ((p.expected - p.transferredOfExpected) / bytesPerSecond);
+                sb.append(String.format(", %d:%02d left", eta / 60, eta % 60));
+            }
+        }
+        progress.setString(sb.toString());
+    }
+
     private static String iconFile(String icon) {
         if (icon == null)
             return null;
@@ -127,8 +259,19 @@ public class GUIListener {
         return icon + ".png";
     }
 
-    private void createContent() {
-        content = new JPanel(new BorderLayout());
+    private JPanel createContent() {
+        final JTextArea text = new JTextArea(5, 20);
+        text.setMargin(new Insets(5, 5, 5, 5));
+        text.setEditable(false);
+        log.attach(text);
+
+        progress = new JProgressBar(0, 100);
+        progress.setValue(0);
+        progress.setStringPainted(true);
+        progress.setString("");
+        progress.setPreferredSize(new Dimension(360, progress.getPreferredSize().height)); // room for the status text
+
+        final JPanel content = new JPanel(new BorderLayout());
 
         final JPanel panel = new JPanel();
         panel.add(progress);
@@ -137,14 +280,25 @@ public class GUIListener {
         content.add(panel, BorderLayout.PAGE_START);
         content.add(new JScrollPane(text), BorderLayout.CENTER);
         content.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        return content;
     }
 
     public void dispose() {
+        final boolean wasScheduled = scheduled.get();
         this.disposed = true;
-        if (frame != null) {
-            frame.setVisible(false);
-            frame.dispose();
-        }
+        if (!wasScheduled)
+            return; // no window, and no need to touch Swing
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (progressTimer != null)
+                    progressTimer.stop();
+                if (frame != null) {
+                    frame.setVisible(false);
+                    frame.dispose();
+                }
+            }
+        });
     }
 
     public TransferListener getTransferListener() {
@@ -155,16 +309,159 @@ public class GUIListener {
         return repositoryListener;
     }
 
-    private static class TextAreaOutputStream extends OutputStream {
-        private final JTextArea textArea;
+    /**
+     * Aggregates the progress of all transfers, queued, in progress or completed, in lock-free counters.
+     */
+    private static final class TransferProgress {
+        private final ConcurrentMap<TransferResource, Transfer> transfers = new ConcurrentHashMap<>();
+
+        void initiated(TransferResource resource) {
+            get(resource);
+        }
+
+        void started(TransferResource resource) {
+            get(resource).expected.set(resource.getContentLength()); // the length may only be known now
+        }
+
+        void progressed(TransferResource resource, long transferred) {
+            get(resource).transferred.set(transferred);
+        }
+
+        void succeeded(TransferResource resource, long transferred) {
+            final Transfer t = get(resource);
+            t.expected.set(transferred);
+            t.transferred.set(transferred);
+            t.completed = true;
+        }
+
+        void failed(TransferResource resource) {
+            transfers.remove(resource);
+        }
+
+        Snapshot snapshot() {
+            final Snapshot s = new Snapshot();
+            for (final Transfer t : transfers.values()) {
+                final long e = t.expected.get();
+                final long x = t.transferred.get();
+                s.count++;
+                if (t.completed)
+                    s.completed++;
+                s.transferred += x;
+                if (e >= 0) {
+                    s.expected += e;
+                    s.transferredOfExpected += Math.min(e, x);
+                } else
+                    s.unknown++; // content length is -1 until the server tells
+            }
+            return s;
+        }
+
+        static final class Snapshot {
+            int count;
+            int completed;
+            int unknown;
+            long expected;
+            long transferredOfExpected;
+            long transferred;
+        }
+
+        private Transfer get(TransferResource resource) {
+            Transfer t = transfers.get(resource);
+            if (t == null) {
+                final Transfer t0 = transfers.putIfAbsent(resource, t = new Transfer(resource.getContentLength()));
+                if (t0 != null)
+                    t = t0;
+            }
+            return t;
+        }
+
+        private static final class Transfer {
+            final AtomicLong expected;
+            final AtomicLong transferred = new AtomicLong();
+            volatile boolean completed;
+
+            Transfer(long expected) {
+                this.expected = new AtomicLong(expected);
+            }
+        }
+    }
+
+    /**
+     * Collects the written text into lines, and appends them to a text area in batches on the EDT, keeping only the
+     * last lines. Until a text area is attached, the last lines are kept in memory.
+     */
+    private static final class TextAreaLog extends OutputStream {
+        private JTextArea textArea; // guarded by this; used on the EDT
+        private final int maxLines;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        private final Deque<String> pending = new ArrayDeque<>(); // guarded by this
+        private boolean scheduled; // guarded by this
 
-        public TextAreaOutputStream(JTextArea textArea) {
-            this.textArea = textArea;
+        private final Runnable publisher = new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        };
+
+        TextAreaLog(int maxLines) {
+            this.maxLines = maxLines;
+        }
+
+        /**
+         * Attaches the text area, appending the lines written so far. Must be called on the EDT.
+         */
+        void attach(JTextArea textArea) {
+            synchronized (this) {
+                this.textArea = textArea;
+            }
+            publish();
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            line.write(b);
+            if (b == '\n')
+                endLine();
         }
 
         @Override
-        public void write(int b) {
-            textArea.append(String.valueOf((char) b));
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++)
+                write(b[i]);
+        }
+
+        private void endLine() {
+            pending.addLast(line.toString());
+            line.reset();
+            if (pending.size() > maxLines)
+                pending.removeFirst(); // would be trimmed anyway
+            if (textArea != null && !scheduled) {
+                scheduled = true;
+                SwingUtilities.invokeLater(publisher);
+            }
+        }
+
+        private void publish() {
+            final StringBuilder sb = new StringBuilder();
+            final JTextArea textArea;
+            synchronized (this) {
+                textArea = this.textArea;
+                for (final String l : pending)
+                    sb.append(l);
+                pending.clear();
+                scheduled = false;
+            }
+
+            textArea.append(sb.toString());
+            final int excess = textArea.getLineCount() - 1 - maxLines; // the text ends with a newline
+            if (excess > 0) {
+                try {
+                    textArea.replaceRange(null, 0, textArea.getLineStartOffset(excess));
+                } catch (BadLocationException e) {
+                    throw new AssertionError(e);
+                }
+            }
             textArea.setCaretPosition(textArea.getDocument().getLength());
         }
     }
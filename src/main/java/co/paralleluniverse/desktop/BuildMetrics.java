@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the wall time, I/O volume and peak heap of build phases, and writes them as a JSON report.
+ * <p>
+ * The peak heap of a phase is the JVM's peak heap usage since the phase started or, if other phases were already
+ * running, since the earliest of them started; phases of concurrent builds therefore share their peaks.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class BuildMetrics {
+    private static final Logger log = LoggerFactory.getLogger(BuildMetrics.class);
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Starts timing a phase; the phase is recorded when {@link Phase#close() closed}.
+     *
+     * @param capsule  The capsule being built
+     * @param platform The platform being built, or {@code null} if the phase is not platform-specific
+     * @param name     The phase name
+     */
+    public Phase start(String capsule, String platform, String name) {
+        if (running.getAndIncrement() == 0)
+            resetPeakHeap();
+        return new Phase(capsule, platform, name);
+    }
+
+    /**
+     * The phases recorded so far, in order of completion.
+     */
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    /**
+     * Writes the recorded phases as JSON.
+     */
+    public void writeJson(Path file) throws IOException {
+        log.debug("Writing build metrics to {}", file.toAbsolutePath().normalize().toString());
+        final List<Phase> ps = getPhases();
+        try (Writer w = Files.newBufferedWriter(file, Charset.forName("UTF-8"))) {
+            w.write("{\n");
+            w.write("  \"startTime\": " + startMillis + ",\n");
+            w.write("  \"wallMillis\": " + millis(System.nanoTime() - startNanos) + ",\n");
+            w.write("  \"phases\": [");
+            for (int i = 0; i < ps.size(); i++) {
+                w.write(i == 0 ? "\n" : ",\n");
+                w.write("    ");
+                ps.get(i).writeJson(w);
+            }
+            w.write(ps.isEmpty() ? "]\n" : "\n  ]\n");
+            w.write("}\n");
+        }
+    }
+
+    private synchronized void record(Phase phase) {
+        phases.add(phase);
+    }
+
+    private static void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        if (s == null)
+            return "null";
+        final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * A timed build phase.
+     */
+    public final class Phase implements Closeable {
+        private final String capsule;
+        private final String platform;
+        private final String name;
+        private final long start = System.nanoTime();
+        private long nanos = -1;
+        private long bytesRead;
+        private long bytesWritten;
+        private long peakHeap;
+
+        private Phase(String capsule, String platform, String name) {
+            this.capsule = capsule;
+            this.platform = platform;
+            this.name = name;
+        }
+
+        /**
+         * Adds to the number of bytes read by this phase.
+         */
+        public Phase read(long bytes) {
+            this.bytesRead += bytes;
+            return this;
+        }
+
+        /**
+         * Adds to the number of bytes written by this phase.
+         */
+        public Phase written(long bytes) {
+            this.bytesWritten += bytes;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallNanos() {
+            return nanos;
+        }
+
+        /**
+         * Ends the phase and records it. Closing a phase more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (nanos >= 0)
+                return;
+            nanos = System.nanoTime() - start;
+            peakHeap = getPeakHeap();
+            running.decrementAndGet();
+            log.debug("Phase {}{} of {} took {} ms", platform != null ? platform + "/" : "", name, capsule, millis(nanos));
+            record(this);
+        }
+
+        private void writeJson(Writer w) throws IOException {
+            w.write("{\"capsule\": " + quote(capsule)
+                    + ", \"platform\": " + quote(platform)
+                    + ", \"phase\": " + quote(name)
+                    + ", \"startMillis\": " + millis(start - startNanos)
+                    + ", \"wallMillis\": " + millis(nanos)
+                    + ", \"bytesRead\": " + bytesRead
+                    + ", \"bytesWritten\": " + bytesWritten
+                    + ", \"peakHeapBytes\": " + peakHeap + "}");
+        }
+    }
+}
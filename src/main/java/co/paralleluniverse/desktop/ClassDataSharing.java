@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the class-data-sharing (CDS) archives that let the native binaries' JVM map pre-parsed classes instead of
+ * loading them from the capsule.
+ * <p>
+ * Archives are dynamic ones, auto-created by the JVM (Java 19 or later) when missing or stale, so a binary that is
+ * moved, or run by a different JVM than the one it was trained with, regenerates its archive on exit rather than
+ * starting without it. Older JVMs ignore the options altogether.
+ */
+public final class ClassDataSharing {
+    /**
+     * The suffix of the archive file, which is kept next to the executable it belongs to.
+     */
+    public static final String ARCHIVE_SUFFIX = ".jsa";
+
+    /**
+     * The suffix of the application JVM's archive, which is kept next to the executable too.
+     */
+    public static final String APP_ARCHIVE_SUFFIX = "-app.jsa";
+
+    private static final Logger log = LoggerFactory.getLogger(ClassDataSharing.class);
+
+    private ClassDataSharing() {
+    }
+
+    /**
+     * The JVM options that use (and, if needed, create) the given archive.
+     *
+     * @param archive The archive pathname, as it should appear on the command line (it can reference variables)
+     */
+    public static List<String> getJvmOptions(String archive) {
+        return Arrays.asList(
+                "-XX:+IgnoreUnrecognizedVMOptions", // Java < 19 must still launch
+                "-XX:+AutoCreateSharedArchive",
+                "-XX:SharedArchiveFile=" + archive);
+    }
+
+    /**
+     * The JVM options that make the application's JVM, started by Capsule, use (and, if needed, create) an archive of
+     * its own next to the executable. It is created when the application first exits.
+     */
+    public static List<String> getAppJvmOptions() {
+        return getJvmOptions("$CAPSULE_JAR" + APP_ARCHIVE_SUFFIX); // expanded by Capsule
+    }
+
+    /**
+     * Trains the archive of an executable JAR by launching it with this JVM, so that the launcher loads its classes but
+     * doesn't start the application.
+     *
+     * @param jar     The executable JAR
+     * @param archive The archive to create; an existing one is replaced
+     * @param resolve Whether to launch in Capsule's resolve mode, which also loads the classes that build the
+     *                classpath; it must only be used when this doesn't download dependencies
+     * @return {@code true} if the archive has been created; {@code false} if this JVM can't create it
+     */
+    public static boolean train(Path jar, Path archive, boolean resolve) throws IOException {
+        return train(jar, archive, getJavaExecutable(), resolve);
+    }
+
+    /**
+     * Trains the archive of an executable JAR by launching it with the given Java executable (e.g. that of a bundled
+     * runtime, which the archive must match).
+     *
+     * @param jar     The executable JAR
+     * @param archive The archive to create; an existing one is replaced
+     * @param java    The Java executable
+     * @param resolve Whether to launch in Capsule's resolve mode rather than its version mode
+     * @return {@code true} if the archive has been created; {@code false} if the JVM can't create it
+     */
+    public static boolean train(Path jar, Path archive, Path java, boolean resolve) throws IOException {
+        Files.deleteIfExists(archive);
+
+        final List<String> command = new ArrayList<>();
+        command.add(java.toString());
+        command.addAll(getJvmOptions(archive.toAbsolutePath().toString()));
+        command.add(resolve ? "-Dcapsule.resolve=true" : "-Dcapsule.version=true");
+        command.add("-jar");
+        command.add(jar.toAbsolutePath().toString());
+        log.debug("CDS training launch: {}", command);
+
+        final Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset()))) {
+            for (String line; (line = r.readLine()) != null;)
+                log.debug("CDS training: {}", line);
+        }
+        final int exit;
+        try {
+            exit = p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while training " + archive, e);
+        }
+
+        if (exit != 0)
+            throw new IOException("CDS training launch of " + jar + " failed with exit code " + exit);
+        if (!Files.isRegularFile(archive)) {
+            log.info("{} has not been created: {} can't create CDS archives automatically; it will be created on first launch with Java 19 or later",
+                    archive, java);
+            return false;
+        }
+        return true;
+    }
+
+    private static Path getJavaExecutable() {
+        final boolean windows = System.getProperty("os.name").toLowerCase().startsWith("windows");
+        return Paths.get(System.getProperty("java.home"), "bin", windows ? "java.exe" : "java");
+    }
+}
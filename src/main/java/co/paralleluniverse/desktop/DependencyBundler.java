@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import capsule.DependencyManager;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves a capsule's Maven dependencies at build time, so that they can be embedded in the native binaries and the
+ * application can start without downloading anything.
+ * <p>
+ * Resolution uses the same dependency manager (and local repository) as {@code MavenCapsule} does at launch time.
+ */
+public final class DependencyBundler {
+    /**
+     * The system property that can be used to override the local repository, as with {@code MavenCapsule}.
+     */
+    public static final String PROP_LOCAL_REPO = "capsule.local";
+    private static final String ENV_LOCAL_REPO = "CAPSULE_LOCAL_REPO";
+
+    private static final int LOG_QUIET = 1;
+    private static final int LOG_DEBUG = 3;
+
+    private static final Logger log = LoggerFactory.getLogger(DependencyBundler.class);
+
+    private DependencyBundler() {
+    }
+
+    /**
+     * The local repository used when none is given: the {@value #PROP_LOCAL_REPO} system property, the
+     * {@code CAPSULE_LOCAL_REPO} environment variable or {@code ~/.capsule/deps}.
+     */
+    public static Path getDefaultLocalRepo() {
+        String repo = System.getProperty(PROP_LOCAL_REPO);
+        if (repo == null)
+            repo = System.getenv(ENV_LOCAL_REPO);
+        return repo != null ? Paths.get(repo) : Paths.get(System.getProperty("user.home"), ".capsule", "deps");
+    }
+
+    /**
+     * Resolves dependencies, downloading them into the local repository if needed.
+     *
+     * @param dependencies   The dependencies' Maven coordinates, as in the {@code Dependencies} attribute
+     * @param repositories   The repositories, as in the {@code Repositories} attribute, or {@code null} for the defaults
+     * @param allowSnapshots Whether snapshot versions can be resolved
+     * @param localRepo      The local repository
+     * @return the entry names the resolved JARs should be embedded with, mapped to the JARs in the local repository,
+     *         in classpath order
+     */
+    public static Map<String, Path> resolve(List<String> dependencies, List<String> repositories, boolean allowSnapshots, Path localRepo) {
+        log.info("Resolving {} dependencies into {}", dependencies.size(), localRepo);
+        final DependencyManager dm = new DependencyManager(localRepo, false, log.isDebugEnabled() ? LOG_DEBUG : LOG_QUIET);
+        dm.setRepos(repositories, allowSnapshots);
+        final List<Path> jars = dm.resolveDependencies(dependencies, "jar");
+
+        final Map<String, Path> entries = new LinkedHashMap<>();
+        final Set<String> names = new HashSet<>();
+        for (final Path jar : jars) {
+            final String fileName = jar.getFileName().toString();
+            String name = fileName;
+            for (int i = 1; !names.add(name); i++) // same file name in different groups
+                name = i + "-" + fileName;
+            entries.put(name, jar);
+        }
+        log.debug("Resolved dependencies: {}", entries.keySet());
+        return entries;
+    }
+}
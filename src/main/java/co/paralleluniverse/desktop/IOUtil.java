@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * I/O utilities used for resource extraction and JAR writing.
+ * <p>
+ * File-to-file copies use {@link FileChannel#transferTo(long, long, WritableByteChannel) transferTo}, letting the OS
+ * move the data without copying it through the Java heap. Other channel copies go through a small pool of direct
+ * buffers, and stream copies through a per-thread heap buffer, so that no buffer is allocated per copy.
+ */
+public final class IOUtil {
+    /**
+     * The size of pooled buffers.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private static final ThreadLocal<byte[]> streamBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private IOUtil() {
+    }
+
+    /**
+     * Copies a stream into another, using channel transfers if both are file streams.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream is, OutputStream os) throws IOException {
+        if (is instanceof FileInputStream && os instanceof FileOutputStream)
+            return copy(((FileInputStream) is).getChannel(), ((FileOutputStream) os).getChannel());
+
+        final byte[] buffer = streamBuffer.get();
+        long count = 0;
+        for (int n; (n = is.read(buffer)) != -1;) {
+            os.write(buffer, 0, n);
+            count += n;
+        }
+        os.flush();
+        return count;
+    }
+
+    /**
+     * Copies a stream into a file, replacing it if it exists.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream is, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (is instanceof FileInputStream)
+                return copy(((FileInputStream) is).getChannel(), out);
+
+            final byte[] buffer = streamBuffer.get();
+            final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long count = 0;
+            for (int n; (n = is.read(buffer)) != -1;) {
+                wrapped.clear().limit(n);
+                while (wrapped.hasRemaining())
+                    out.write(wrapped);
+                count += n;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Copies a file, replacing the target if it exists.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return copy(in, out);
+        }
+    }
+
+    /**
+     * Copies all the remaining data of a channel into another.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        if (in instanceof FileChannel) {
+            final FileChannel fc = (FileChannel) in;
+            final long start = fc.position(), size = fc.size();
+            long position = start;
+            while (position < size) {
+                final long n = fc.transferTo(position, size - position, out);
+                if (n <= 0)
+                    throw new IOException("Unexpected end of file"); // the file was truncated while being copied
+                position += n;
+            }
+            fc.position(position);
+            return position - start;
+        }
+
+        final ByteBuffer buffer = acquireBuffer();
+        try {
+            long count = 0;
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                count += buffer.remaining();
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                buffer.clear();
+            }
+            return count;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Reads a stream fully.
+     *
+     * @param sizeHint the expected size, or a non-positive value if unknown
+     */
+    public static byte[] readAll(InputStream is, long sizeHint) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int) sizeHint : 8192);
+        copy(is, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Feeds a file's contents to a message digest.
+     */
+    public static MessageDigest digest(Path file, MessageDigest md) throws IOException {
+        final ByteBuffer buffer = acquireBuffer();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+            return md;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Computes a file's CRC-32 checksum.
+     */
+    public static long crc32(Path file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = streamBuffer.get();
+        try (InputStream is = Files.newInputStream(file)) {
+            for (int n; (n = is.read(buffer)) != -1;)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Deletes a file or a directory with all its contents, if it exists. Symbolic links are deleted, not followed.
+     */
+    public static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
+                for (final Path p : ds)
+                    delete(p);
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        final ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        pooledBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS)
+            bufferPool.offer(buffer);
+        else
+            pooledBuffers.decrementAndGet();
+    }
+}
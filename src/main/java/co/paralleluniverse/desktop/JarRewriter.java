@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a modified copy of a JAR, changing only its manifest attributes, adding entries and optionally prepending a
+ * prefix (e.g. a shell script). Entries added from files (e.g. embedded JARs) are stored uncompressed and copied
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo}.
+ * <p>
+ * Unlike {@link Jar}, entries that are not modified are not inflated and deflated again: their local headers and
+ * compressed data are copied as raw bytes with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo},
+ * and only the manifest, the added entries and the central directory are written anew. JARs that can't be copied
+ * this way (e.g. Zip64 archives) are recompressed: their entries are inflated and deflated again concurrently on a
+ * fork-join pool, and written in their original order once compressed, so that the output is byte-identical
+ * whatever the {@link #setParallelism(int) parallelism}. The output is written in the Zip64 format when needed.
+ */
+public final class JarRewriter {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int LOC_HEADER_SIZE = 30;
+    private static final int CEN_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int ZIP64_END_HEADER_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+
+    // bounds the memory held by compressed entries waiting to be written, per worker
+    private static final long PENDING_BYTES_PER_THREAD = 16 * 1024 * 1024;
+    private static final int PENDING_ENTRIES_PER_THREAD = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger log = LoggerFactory.getLogger(JarRewriter.class);
+
+    private final Path jar;
+    private String prefix;
+    private final Map<String, Collection<?>> listAttributes = new LinkedHashMap<>();
+    private final Set<String> removedAttributes = new HashSet<>();
+    private final Map<String, byte[]> entries = new LinkedHashMap<>();
+    private final Map<String, Path> fileEntries = new LinkedHashMap<>();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public JarRewriter(Path jar) {
+        this.jar = jar;
+    }
+
+    /**
+     * Sets the number of threads compressing entries when the JAR has to be recompressed; 1 compresses them in the
+     * writing thread. The default is the number of cores.
+     */
+    public JarRewriter setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets a string that will be prepended to the JAR file's data.
+     */
+    public JarRewriter setJarPrefix(String value) {
+        this.prefix = value;
+        return this;
+    }
+
+    /**
+     * Sets a manifest attribute to a space-separated list of values.
+     */
+    public JarRewriter setListAttribute(String name, Collection<?> values) {
+        listAttributes.put(name, values);
+        removedAttributes.remove(name);
+        return this;
+    }
+
+    /**
+     * Removes a manifest attribute.
+     */
+    public JarRewriter removeAttribute(String name) {
+        removedAttributes.add(name);
+        listAttributes.remove(name);
+        return this;
+    }
+
+    /**
+     * Adds an entry, replacing the existing one with the same name if any.
+     */
+    public JarRewriter addEntry(String name, InputStream is) throws IOException {
+        try {
+            fileEntries.remove(name);
+            entries.put(name, IOUtil.readAll(is, -1));
+            return this;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Adds an uncompressed entry with a file's contents, replacing the existing one with the same name if any. The
+     * file is read when the JAR is {@link #write(Path) written}.
+     */
+    public JarRewriter addEntry(String name, Path file) {
+        entries.remove(name);
+        fileEntries.put(name, file);
+        return this;
+    }
+
+    /**
+     * Adds a class' class file.
+     */
+    public JarRewriter addClass(Class<?> clazz) throws IOException {
+        final String name = clazz.getName().replace('.', '/') + ".class";
+        return addEntry(name, getResource(clazz, name));
+    }
+
+    /**
+     * Adds the class files of a class' package whose entry names match the given regular expression.
+     */
+    public JarRewriter addPackageOf(Class<?> clazz, String regex) throws IOException {
+        final Pattern pattern = Pattern.compile(regex);
+        for (final String name : listPackage(clazz)) {
+            if (pattern.matcher(name).matches())
+                addEntry(name, getResource(clazz, name));
+        }
+        return this;
+    }
+
+    /**
+     * Writes the modified JAR.
+     *
+     * @param out The output file; it must be different from the input JAR
+     * @return {@code out}
+     */
+    public Path write(Path out) throws IOException {
+        try (FileChannel in = FileChannel.open(jar, StandardOpenOption.READ)) {
+            final List<CentralEntry> central = readCentralDirectory(in);
+            if (central != null) {
+                log.debug("Rewriting {} to {} copying unchanged entries as raw data", jar, out);
+                writeRaw(in, central, out);
+                return out;
+            }
+        }
+        log.debug("{} can't be copied as raw data, recompressing it to {} with {} threads", jar, out, parallelism);
+        writeRecompressed(out);
+        return out;
+    }
+
+    private void writeRecompressed(Path out) throws IOException {
+        final int time = dosTime(Files.getLastModifiedTime(jar).toMillis());
+        final ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try (ZipFile zf = new ZipFile(jar.toFile());
+             FileChannel os = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (prefix != null)
+                writeFully(os, ByteBuffer.wrap(prefix.getBytes(UTF8)));
+            final ZipOutput zip = new ZipOutput(os);
+
+            String manifestName = null;
+            for (final Enumeration<? extends ZipEntry> es = zf.entries(); es.hasMoreElements() && manifestName == null;) {
+                final String name = es.nextElement().getName();
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(name))
+                    manifestName = name;
+            }
+            writeDeflatedEntry(zip, JarFile.MANIFEST_NAME, time, deflate(new ByteArrayInputStream(rewriteManifest(manifestName))));
+
+            final Deque<PendingEntry> pending = new ArrayDeque<>();
+            long pendingBytes = 0;
+            for (final Enumeration<? extends ZipEntry> es = zf.entries(); es.hasMoreElements();) {
+                final ZipEntry ze = es.nextElement();
+                if (ze.getName().equals(manifestName) || entries.containsKey(ze.getName()) || fileEntries.containsKey(ze.getName()))
+                    continue;
+                final PendingEntry p = ze.isDirectory() || ze.getMethod() == ZipEntry.STORED
+                        ? new PendingEntry(ze.getName(), dosTime(ze.getTime()), ze, null)
+                        : new PendingEntry(ze.getName(), dosTime(ze.getTime()), null, compress(pool, zf, ze));
+                pending.add(p);
+                pendingBytes += Math.max(ze.getSize(), 0);
+                while (pending.size() > 1 && (pendingBytes > PENDING_BYTES_PER_THREAD * parallelism || pending.size() > PENDING_ENTRIES_PER_THREAD * parallelism))
+                    pendingBytes -= writePending(zip, zf, pending.poll());
+            }
+            for (final Map.Entry<String, byte[]> e : entries.entrySet())
+                pending.add(new PendingEntry(e.getKey(), time, null, compress(pool, e.getValue())));
+            while (!pending.isEmpty())
+                writePending(zip, zf, pending.poll());
+
+            for (final Map.Entry<String, Path> e : fileEntries.entrySet())
+                writeStoredEntry(zip, e.getKey(), e.getValue());
+            zip.finish();
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+    }
+
+    private static ForkJoinTask<Deflated> compress(ForkJoinPool pool, final ZipFile zf, final ZipEntry ze) {
+        return submit(pool, new Callable<Deflated>() {
+            @Override
+            public Deflated call() throws IOException {
+                try (InputStream is = zf.getInputStream(ze)) {
+                    return deflate(is);
+                }
+            }
+        });
+    }
+
+    private static ForkJoinTask<Deflated> compress(ForkJoinPool pool, final byte[] content) {
+        return submit(pool, new Callable<Deflated>() {
+            @Override
+            public Deflated call() throws IOException {
+                return deflate(new ByteArrayInputStream(content));
+            }
+        });
+    }
+
+    private static ForkJoinTask<Deflated> submit(ForkJoinPool pool, Callable<Deflated> c) {
+        final ForkJoinTask<Deflated> task = ForkJoinTask.adapt(c);
+        if (pool != null)
+            pool.execute(task);
+        else
+            task.invoke(); // serial
+        return task;
+    }
+
+    /**
+     * Writes a pending entry, waiting for its compression to complete.
+     *
+     * @return the entry's uncompressed size
+     */
+    private static long writePending(ZipOutput zip, ZipFile zf, PendingEntry p) throws IOException {
+        if (p.compressed != null) {
+            final Deflated d;
+            try {
+                d = p.compressed.join();
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof IOException)
+                    throw new IOException("Compressing " + p.name + " failed", e.getCause());
+                throw e;
+            }
+            writeDeflatedEntry(zip, p.name, p.time, d);
+            return d.size;
+        }
+
+        final ZipEntry ze = p.stored;
+        final long size = Math.max(ze.getSize(), 0);
+        zip.putEntry(p.name, ZipEntry.STORED, p.time, ze.getCrc() & 0xffffffffL, size, size);
+        if (size > 0) {
+            try (InputStream is = zf.getInputStream(ze)) {
+                IOUtil.copy(Channels.newChannel(is), zip.os);
+            }
+        }
+        return size;
+    }
+
+    private static final class PendingEntry {
+        final String name;
+        final int time;
+        final ZipEntry stored;                  // copied as is when written
+        final ForkJoinTask<Deflated> compressed; // or compressed concurrently
+
+        PendingEntry(String name, int time, ZipEntry stored, ForkJoinTask<Deflated> compressed) {
+            this.name = name;
+            this.time = time;
+            this.stored = stored;
+            this.compressed = compressed;
+        }
+    }
+
+    private void writeRaw(FileChannel in, List<CentralEntry> central, Path out) throws IOException {
+        CentralEntry manifest = null;
+        for (final CentralEntry e : central) {
+            if (JarFile.MANIFEST_NAME.equalsIgnoreCase(e.name))
+                manifest = e;
+        }
+        final Deflated manifestData = deflate(new ByteArrayInputStream(rewriteManifest(manifest != null ? manifest.name : null)));
+        final int time = dosTime(Files.getLastModifiedTime(jar).toMillis());
+
+        try (FileChannel os = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (prefix != null)
+                writeFully(os, ByteBuffer.wrap(prefix.getBytes(UTF8)));
+            final ZipOutput zip = new ZipOutput(os);
+
+            if (manifest == null)
+                writeDeflatedEntry(zip, JarFile.MANIFEST_NAME, time, manifestData);
+
+            long runStart = -1, runEnd = -1; // a run of contiguous entries copied with a single transfer
+            for (final CentralEntry e : central) {
+                if (e == manifest || entries.containsKey(e.name) || fileEntries.containsKey(e.name)) {
+                    if (runStart >= 0)
+                        transfer(in, runStart, runEnd - runStart, os);
+                    runStart = -1;
+                    if (e == manifest)
+                        writeDeflatedEntry(zip, JarFile.MANIFEST_NAME, time, manifestData);
+                    continue;
+                }
+
+                final long newOffset = os.position() + (runStart >= 0 ? runEnd - runStart : 0);
+                if (runStart >= 0 && runEnd == e.localOffset)
+                    runEnd = e.localEnd;
+                else {
+                    if (runStart >= 0)
+                        transfer(in, runStart, runEnd - runStart, os);
+                    runStart = e.localOffset;
+                    runEnd = e.localEnd;
+                }
+                zip.putCentralRecord(e, newOffset);
+            }
+            if (runStart >= 0)
+                transfer(in, runStart, runEnd - runStart, os);
+
+            for (final Map.Entry<String, byte[]> e : entries.entrySet())
+                writeDeflatedEntry(zip, e.getKey(), time, deflate(new ByteArrayInputStream(e.getValue())));
+            for (final Map.Entry<String, Path> e : fileEntries.entrySet())
+                writeStoredEntry(zip, e.getKey(), e.getValue());
+            zip.finish();
+        }
+    }
+
+    private byte[] rewriteManifest(String entryName) throws IOException {
+        final Manifest manifest = new Manifest();
+        if (entryName != null) {
+            try (ZipFile zf = new ZipFile(jar.toFile())) {
+                final ZipEntry ze = zf.getEntry(entryName);
+                try (InputStream is = zf.getInputStream(ze)) {
+                    manifest.read(is);
+                }
+            }
+        } else
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+        for (final Map.Entry<String, Collection<?>> a : listAttributes.entrySet()) {
+            final StringBuilder sb = new StringBuilder();
+            for (final Object v : a.getValue())
+                sb.append(sb.length() > 0 ? " " : "").append(v);
+            manifest.getMainAttributes().putValue(a.getKey(), sb.toString());
+        }
+        for (final String a : removedAttributes)
+            manifest.getMainAttributes().remove(new Attributes.Name(a));
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        manifest.write(baos);
+        return baos.toByteArray();
+    }
+
+    private static Deflated deflate(InputStream is) throws IOException {
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final byte[] in = new byte[8192];
+        final byte[] out = new byte[8192];
+        long size = 0;
+        try {
+            for (int n; (n = is.read(in)) >= 0;) {
+                crc.update(in, 0, n);
+                size += n;
+                deflater.setInput(in, 0, n);
+                while (!deflater.needsInput())
+                    compressed.write(out, 0, deflater.deflate(out));
+            }
+            deflater.finish();
+            while (!deflater.finished())
+                compressed.write(out, 0, deflater.deflate(out));
+        } finally {
+            deflater.end();
+        }
+        return new Deflated(crc.getValue(), size, compressed.toByteArray());
+    }
+
+    private static final class Deflated {
+        final long crc;
+        final long size;
+        final byte[] data;
+
+        Deflated(long crc, long size, byte[] data) {
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private static void writeDeflatedEntry(ZipOutput zip, String name, int time, Deflated d) throws IOException {
+        zip.putEntry(name, ZipEntry.DEFLATED, time, d.crc, d.data.length, d.size);
+        writeFully(zip.os, ByteBuffer.wrap(d.data));
+    }
+
+    private static void writeStoredEntry(ZipOutput zip, String name, Path file) throws IOException {
+        final long size = Files.size(file);
+        zip.putEntry(name, ZipEntry.STORED, dosTime(Files.getLastModifiedTime(file).toMillis()), IOUtil.crc32(file), size, size);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer(in, 0, size, zip.os);
+        }
+    }
+
+    /**
+     * Writes local headers, and the central directory and end records once all entries are written, using Zip64
+     * records for the sizes, offsets and counts that need them.
+     */
+    private static final class ZipOutput {
+        final FileChannel os;
+        private final ByteArrayOutputStream cen = new ByteArrayOutputStream();
+        private long count;
+
+        ZipOutput(FileChannel os) {
+            this.os = os;
+        }
+
+        /**
+         * Writes an entry's local header; the entry's data must be written right after it.
+         */
+        void putEntry(String name, int method, int time, long crc, long compressedSize, long size) throws IOException {
+            final byte[] nameBytes = name.getBytes(UTF8);
+            final long offset = os.position();
+            final boolean zip64Sizes = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+            final boolean zip64Offset = offset >= ZIP64_MAGIC;
+            final int version = zip64Sizes || zip64Offset ? 45 : method == ZipEntry.STORED ? 10 : 20;
+
+            final ByteBuffer loc = ByteBuffer.allocate(LOC_HEADER_SIZE + nameBytes.length + (zip64Sizes ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+            loc.putInt(LOC_SIG).putShort((short) version).putShort((short) FLAG_UTF8).putShort((short) method)
+                .putInt(time).putInt((int) crc)
+                .putInt((int) (zip64Sizes ? ZIP64_MAGIC : compressedSize)).putInt((int) (zip64Sizes ? ZIP64_MAGIC : size))
+                .putShort((short) nameBytes.length).putShort((short) (zip64Sizes ? 20 : 0)).put(nameBytes);
+            if (zip64Sizes)
+                loc.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(size).putLong(compressedSize);
+            loc.flip();
+            writeFully(os, loc);
+
+            final int extraSize = (size >= ZIP64_MAGIC ? 8 : 0) + (compressedSize >= ZIP64_MAGIC ? 8 : 0) + (zip64Offset ? 8 : 0);
+            final ByteBuffer c = ByteBuffer.allocate(CEN_HEADER_SIZE + nameBytes.length + (extraSize > 0 ? 4 + extraSize : 0)).order(ByteOrder.LITTLE_ENDIAN);
+            c.putInt(CEN_SIG).putShort((short) version).putShort((short) version).putShort((short) FLAG_UTF8).putShort((short) method)
+                .putInt(time).putInt((int) crc)
+                .putInt((int) Math.min(compressedSize, ZIP64_MAGIC)).putInt((int) Math.min(size, ZIP64_MAGIC))
+                .putShort((short) nameBytes.length).putShort((short) (extraSize > 0 ? 4 + extraSize : 0)).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) Math.min(offset, ZIP64_MAGIC)).put(nameBytes);
+            if (extraSize > 0) {
+                c.putShort((short) ZIP64_EXTRA_ID).putShort((short) extraSize);
+                if (size >= ZIP64_MAGIC)
+                    c.putLong(size);
+                if (compressedSize >= ZIP64_MAGIC)
+                    c.putLong(compressedSize);
+                if (zip64Offset)
+                    c.putLong(offset);
+            }
+            cen.write(c.array(), 0, c.position());
+            count++;
+        }
+
+        /**
+         * Records the central directory record of an entry copied as raw data.
+         */
+        void putCentralRecord(CentralEntry e, long newOffset) throws IOException {
+            if (newOffset >= ZIP64_MAGIC)
+                throw new IOException("Entry " + e.name + " is beyond the first 4GB of the JAR");
+            e.writeCentralRecord(cen, newOffset);
+            count++;
+        }
+
+        void finish() throws IOException {
+            final long cenOffset = os.position();
+            final byte[] cenBytes = cen.toByteArray();
+            writeFully(os, ByteBuffer.wrap(cenBytes));
+
+            final boolean zip64 = count >= ZIP64_MAGIC_COUNT || cenOffset >= ZIP64_MAGIC;
+            if (zip64) {
+                final long zip64EndOffset = os.position();
+                final ByteBuffer end64 = ByteBuffer.allocate(ZIP64_END_HEADER_SIZE + ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                end64.putInt(ZIP64_END_SIG).putLong(ZIP64_END_HEADER_SIZE - 12).putShort((short) 45).putShort((short) 45)
+                    .putInt(0).putInt(0).putLong(count).putLong(count).putLong(cenBytes.length).putLong(cenOffset);
+                end64.putInt(ZIP64_LOCATOR_SIG).putInt(0).putLong(zip64EndOffset).putInt(1);
+                end64.flip();
+                writeFully(os, end64);
+            }
+
+            final ByteBuffer end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_SIG).putShort((short) 0).putShort((short) 0)
+                .putShort((short) (zip64 ? ZIP64_MAGIC_COUNT : count)).putShort((short) (zip64 ? ZIP64_MAGIC_COUNT : count))
+                .putInt(cenBytes.length).putInt((int) (zip64 ? ZIP64_MAGIC : cenOffset)).putShort((short) 0);
+            end.flip();
+            writeFully(os, end);
+        }
+    }
+
+    /**
+     * Parses the central directory, returning its entries sorted by their position in the file, or {@code null} if
+     * the JAR can't be copied as raw data.
+     */
+    private static List<CentralEntry> readCentralDirectory(FileChannel in) throws IOException {
+        final long size = in.size();
+        final int tailSize = (int) Math.min(size, END_HEADER_SIZE + 0xffff);
+        final ByteBuffer tail = readFully(in, size - tailSize, tailSize);
+
+        int endPos = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos < 0)
+            return null;
+        if (endPos >= 20 && tail.getInt(endPos - 20) == ZIP64_LOCATOR_SIG)
+            return null;
+
+        final int count = tail.getShort(endPos + 10) & 0xffff;
+        final long cenSize = tail.getInt(endPos + 12) & 0xffffffffL;
+        final long cenOffset = tail.getInt(endPos + 16) & 0xffffffffL;
+        if (count == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL)
+            return null;
+
+        // data prepended to the input JAR (e.g. an existing prefix) shifts all offsets
+        final long cenStart = size - tailSize + endPos - cenSize;
+        final long shift = cenStart - cenOffset;
+        if (cenStart < 0 || shift < 0)
+            return null;
+
+        final ByteBuffer cen = readFully(in, cenStart, (int) cenSize);
+        final List<CentralEntry> entries = new ArrayList<>(count);
+        for (int pos = 0, i = 0; i < count; i++) {
+            if (pos + CEN_HEADER_SIZE > cen.limit() || cen.getInt(pos) != CEN_SIG)
+                return null;
+            final int nameLen = cen.getShort(pos + 28) & 0xffff;
+            final int extraLen = cen.getShort(pos + 30) & 0xffff;
+            final int commentLen = cen.getShort(pos + 32) & 0xffff;
+            final long localOffset = cen.getInt(pos + 42) & 0xffffffffL;
+            if (localOffset == 0xffffffffL)
+                return null;
+            final int len = CEN_HEADER_SIZE + nameLen + extraLen + commentLen;
+
+            final byte[] record = new byte[len];
+            cen.position(pos);
+            cen.get(record);
+            final String name = new String(record, CEN_HEADER_SIZE, nameLen, UTF8);
+            entries.add(new CentralEntry(name, record, localOffset + shift));
+            pos += len;
+        }
+
+        Collections.sort(entries, new Comparator<CentralEntry>() {
+            @Override
+            public int compare(CentralEntry o1, CentralEntry o2) {
+                return Long.compare(o1.localOffset, o2.localOffset);
+            }
+        });
+        for (int i = 0; i < entries.size(); i++)
+            entries.get(i).localEnd = i + 1 < entries.size() ? entries.get(i + 1).localOffset : cenStart;
+        if (!entries.isEmpty() && readFully(in, entries.get(0).localOffset, 4).getInt(0) != LOC_SIG)
+            return null;
+        return entries;
+    }
+
+    private static final class CentralEntry {
+        final String name;
+        final byte[] record;
+        final long localOffset;
+        long localEnd; // the local header, data and data descriptor span [localOffset, localEnd)
+
+        CentralEntry(String name, byte[] record, long localOffset) {
+            this.name = name;
+            this.record = record;
+            this.localOffset = localOffset;
+        }
+
+        void writeCentralRecord(ByteArrayOutputStream cen, long newOffset) {
+            ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) newOffset);
+            cen.write(record, 0, record.length);
+        }
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            final long n = in.transferTo(position, count, out);
+            if (n <= 0)
+                throw new IOException("Unexpected end of file"); // transferTo returns 0 past the end of the file
+            position += n;
+            count -= n;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long position, int size) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+    private static int dosTime(long millis) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        final int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+            | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static InputStream getResource(Class<?> clazz, String name) throws IOException {
+        final InputStream is = clazz.getClassLoader().getResourceAsStream(name);
+        if (is == null)
+            throw new IOException("Resource " + name + " not found");
+        return is;
+    }
+
+    private static List<String> listPackage(Class<?> clazz) throws IOException {
+        final String className = clazz.getName().replace('.', '/') + ".class";
+        final String packageDir = className.contains("/") ? className.substring(0, className.lastIndexOf('/') + 1) : "";
+        final URL url = clazz.getClassLoader().getResource(className);
+        if (url == null)
+            throw new IOException("Class file " + className + " not found");
+
+        final List<String> names = new ArrayList<>();
+        try {
+            if ("jar".equals(url.getProtocol())) {
+                final String path = url.getPath();
+                try (ZipFile zf = new ZipFile(Paths.get(new URI(path.substring(0, path.indexOf('!')))).toFile())) {
+                    for (final Enumeration<? extends ZipEntry> es = zf.entries(); es.hasMoreElements();) {
+                        final String name = es.nextElement().getName();
+                        if (name.startsWith(packageDir) && name.indexOf('/', packageDir.length()) < 0 && !name.equals(packageDir))
+                            names.add(name);
+                    }
+                }
+            } else if ("file".equals(url.getProtocol())) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(url.toURI()).getParent())) {
+                    for (final Path p : ds) {
+                        if (Files.isRegularFile(p))
+                            names.add(packageDir + p.getFileName().toString());
+                    }
+                }
+            } else
+                throw new IOException("Can't list the package of " + clazz.getName() + " loaded from " + url);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import co.paralleluniverse.capsule.Platform;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The launch4j toolchain (binutils, executable heads and w32api link files) bundled in the capsule-desktop JAR.
+ * <p>
+ * The toolchain is extracted once into a persistent cache directory named after a hash of the bundled resources;
+ * later runs only compute the hash, which is based on the JAR's entry metadata and requires no decompression, and
+ * reuse the extracted files. Extraction is guarded by a file lock so that concurrent runs don't corrupt the cache.
+ */
+public final class Launch4JToolchain {
+    /**
+     * The system property that can be used to override the default cache directory.
+     */
+    public static final String PROP_CACHE_DIR = "capsule.desktop.cache.dir";
+
+    private static final String[] HEAD_FILES = new String[]{"consolehead.o", "guihead.o", "head.o"};
+    private static final String[] LINK_FILES = new String[]{
+        "crt2.o", "libadvapi32.a", "libgcc.a", "libkernel32.a", "libmingw32.a",
+        "libmsvcrt.a", "libshell32.a", "libuser32.a"
+    };
+
+    private static final String DIR_BIN = "bin";
+    private static final String DIR_HEAD = "head";
+    private static final String DIR_W32API = "w32api";
+    private static final String COMPLETE_MARKER = ".complete";
+
+    private static final Logger log = LoggerFactory.getLogger(Launch4JToolchain.class);
+
+    private final Path baseDir;
+    private final Path binDir;
+
+    private Launch4JToolchain(Path baseDir, boolean hasBins) {
+        this.baseDir = baseDir;
+        this.binDir = hasBins ? baseDir.resolve(DIR_BIN) : null;
+    }
+
+    /**
+     * The directory containing the {@code head} and {@code w32api} directories, to be used as launch4j's base dir.
+     */
+    public Path getBaseDir() {
+        return baseDir;
+    }
+
+    /**
+     * The directory containing {@code ld} and {@code windres}, or {@code null} if they are not bundled for the
+     * current platform and must be found on the path.
+     */
+    public Path getBinDir() {
+        return binDir;
+    }
+
+    /**
+     * The cache directory used when none is given, {@code ~/.capsule-desktop/launch4j} unless overridden by the
+     * {@value #PROP_CACHE_DIR} system property.
+     */
+    public static Path getDefaultCacheDir() {
+        final String dir = System.getProperty(PROP_CACHE_DIR);
+        return dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".capsule-desktop", "launch4j");
+    }
+
+    /**
+     * Makes the toolchain bundled in the given JAR available in the given cache directory, extracting it only if
+     * it has not been already.
+     *
+     * @param jar      The JAR bundling the toolchain
+     * @param cacheDir The cache directory
+     */
+    public static Launch4JToolchain extract(Path jar, Path cacheDir) throws IOException {
+        try (ZipFile zf = new ZipFile(jar.toFile())) {
+            final String binResourceDir = getBinResourceDir();
+            final List<ZipEntry> entries = getEntries(zf, binResourceDir);
+            final String key = hash(entries);
+            final Path dir = cacheDir.resolve(key);
+            final boolean hasBins = binResourceDir != null;
+
+            if (isComplete(dir, key)) {
+                log.debug("Reusing cached launch4j toolchain {}", dir);
+                return new Launch4JToolchain(dir, hasBins);
+            }
+
+            Files.createDirectories(cacheDir);
+            try (FileChannel lockChannel = FileChannel.open(cacheDir.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = lockChannel.lock()) {
+                if (isComplete(dir, key)) { // extracted by a concurrent run while we were waiting for the lock
+                    log.debug("Reusing cached launch4j toolchain {}", dir);
+                    return new Launch4JToolchain(dir, hasBins);
+                }
+
+                if (Files.exists(dir)) // left behind by an interrupted run
+                    IOUtil.delete(dir);
+
+                log.debug("Extracting launch4j toolchain to {}", dir);
+                final Path tmp = Files.createTempDirectory(cacheDir, key + "-");
+                try {
+                    for (final ZipEntry e : entries) {
+                        final Path target = tmp.resolve(toCachePath(e.getName()));
+                        Files.createDirectories(target.getParent());
+                        try (InputStream is = zf.getInputStream(e)) {
+                            IOUtil.copy(is, target);
+                        }
+                        if (target.getParent().getFileName().toString().equals(DIR_BIN))
+                            target.toFile().setExecutable(true);
+                    }
+                    Files.write(tmp.resolve(COMPLETE_MARKER), key.getBytes(Charset.forName("UTF-8")));
+                    Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    if (Files.exists(tmp))
+                        IOUtil.delete(tmp);
+                }
+                return new Launch4JToolchain(dir, hasBins);
+            }
+        }
+    }
+
+    private static List<ZipEntry> getEntries(ZipFile zf, String binResourceDir) throws IOException {
+        final List<String> names = new ArrayList<>();
+        if (binResourceDir != null) {
+            for (final String f : getBins())
+                names.add(binResourceDir + '/' + f);
+        }
+        for (final String f : HEAD_FILES)
+            names.add(DIR_HEAD + '/' + f);
+        for (final String f : LINK_FILES)
+            names.add(DIR_W32API + '/' + f);
+
+        final List<ZipEntry> entries = new ArrayList<>();
+        for (final String n : names) {
+            final ZipEntry e = zf.getEntry(n);
+            if (e == null)
+                throw new IOException("Resource " + n + " not found in " + zf.getName());
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static String getBinResourceDir() {
+        if (Platform.myPlatform().isMac())
+            return DIR_BIN + "/mac";
+        else if (Platform.myPlatform().isLinux())
+            return DIR_BIN + "/linux";
+        else if (Platform.myPlatform().isWindows())
+            return DIR_BIN + "/windows";
+        else if (Platform.myPlatform().isUnix()) {
+            log.warn("Detected non-Linux Unix platform, assuming launch4j's 'ld' and 'windres' can be found on the path");
+            return null;
+        } else
+            throw new RuntimeException(Platform.myPlatform() + " is not supported");
+    }
+
+    private static List<String> getBins() {
+        return Platform.myPlatform().isWindows() ? Arrays.asList("ld.exe", "windres.exe") : Arrays.asList("ld", "windres");
+    }
+
+    private static Path toCachePath(String resource) {
+        // bin/<os>/ld -> bin/ld ; head/head.o -> head/head.o
+        final String[] parts = resource.split("/");
+        return Paths.get(parts[0], parts[parts.length - 1]);
+    }
+
+    private static String hash(List<ZipEntry> entries) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (final ZipEntry e : entries)
+                md.update((e.getName() + ':' + e.getSize() + ':' + Long.toHexString(e.getCrc()) + '\n').getBytes(Charset.forName("UTF-8")));
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : md.digest())
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean isComplete(Path dir, String key) throws IOException {
+        final Path marker = dir.resolve(COMPLETE_MARKER);
+        return Files.isRegularFile(marker) && key.equals(new String(Files.readAllBytes(marker), Charset.forName("UTF-8")));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Serves resource lookups in a JAR from a single {@link ZipFile}, opened on first use and kept open until
+ * {@link #close() closed}. Resources read as bytes are cached, as are failed lookups.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class ResourceResolver implements Closeable {
+    private static final byte[] MISSING = new byte[0];
+
+    private final Path jar;
+    private final Map<String, byte[]> cache = new HashMap<>();
+    private ZipFile zip;
+    private boolean closed;
+
+    public ResourceResolver(Path jar) {
+        this.jar = jar;
+    }
+
+    /**
+     * Whether the JAR contains the given resource.
+     */
+    public synchronized boolean hasResource(String name) throws IOException {
+        final byte[] cached = cache.get(name);
+        if (cached != null)
+            return cached != MISSING;
+        return getEntry(name) != null;
+    }
+
+    /**
+     * Returns the contents of the given resource, or {@code null} if the JAR doesn't contain it.
+     */
+    public synchronized byte[] getBytes(String name) throws IOException {
+        byte[] bytes = cache.get(name);
+        if (bytes == null) {
+            final ZipEntry e = getEntry(name);
+            if (e == null)
+                bytes = MISSING;
+            else {
+                try (InputStream is = zip.getInputStream(e)) {
+                    bytes = IOUtil.readAll(is, e.getSize());
+                }
+            }
+            cache.put(name, bytes);
+        }
+        return bytes != MISSING ? bytes : null;
+    }
+
+    /**
+     * Streams the given resource into a file, without caching it.
+     *
+     * @return the number of bytes copied, or {@code -1} if the JAR doesn't contain the resource
+     */
+    public long copy(String name, Path target) throws IOException {
+        final InputStream is;
+        synchronized (this) {
+            final byte[] cached = cache.get(name);
+            if (cached == MISSING)
+                return -1;
+            if (cached != null) {
+                Files.write(target, cached);
+                return cached.length;
+            }
+            final ZipEntry e = getEntry(name);
+            if (e == null) {
+                cache.put(name, MISSING);
+                return -1;
+            }
+            is = zip.getInputStream(e);
+        }
+        try {
+            return IOUtil.copy(is, target);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        cache.clear();
+        if (zip != null) {
+            zip.close();
+            zip = null;
+        }
+    }
+
+    private ZipEntry getEntry(String name) throws IOException {
+        if (closed)
+            throw new IllegalStateException("Resolver for " + jar + " has been closed");
+        if (zip == null)
+            zip = new ZipFile(jar.toFile());
+        return zip.getEntry(name);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Links Java runtime images containing only the modules an application uses, with the {@code jdeps} and
+ * {@code jlink} tools of the JDK running this process (JDK 16 or later).
+ * <p>
+ * Images for other platforms are linked from the {@code jmods} directory of a JDK for that platform.
+ */
+public final class RuntimeImage {
+    /**
+     * Modules that are loaded by name rather than referenced by classes, added when available.
+     */
+    private static final List<String> SERVICE_MODULES = Arrays.asList("jdk.crypto.ec", "jdk.localedata");
+
+    private static final Logger log = LoggerFactory.getLogger(RuntimeImage.class);
+
+    private RuntimeImage() {
+    }
+
+    /**
+     * The {@code jmods} directory of the JDK running this process, or {@code null} if it has none.
+     */
+    public static Path getDefaultJmods() {
+        final Path jmods = getJdkHome().resolve("jmods");
+        return Files.isDirectory(jmods) ? jmods : null;
+    }
+
+    /**
+     * Finds the modules used by the classes of the given JARs.
+     *
+     * @param jars  The JARs to analyze
+     * @param extra Modules to add to those found
+     * @return the module names, sorted
+     */
+    public static Set<String> findModules(Collection<Path> jars, Collection<String> extra) throws IOException {
+        final List<String> command = new ArrayList<>();
+        command.add(getTool("jdeps").toString());
+        command.addAll(Arrays.asList("--print-module-deps", "--ignore-missing-deps", "--multi-release", "base"));
+
+        final Path tmp = Files.createTempDirectory("capsule-jdeps-");
+        final Set<String> modules = new TreeSet<>(extra);
+        try {
+            int i = 0;
+            for (Path jar : jars) {
+                if (!jar.getFileName().toString().endsWith(".jar")) // jdeps reads other files as class files
+                    jar = linkOrCopy(jar, tmp.resolve((i++) + ".jar"));
+                command.add(jar.toAbsolutePath().toString());
+            }
+            for (final String line : run(command)) {
+                if (line.trim().matches("[\\w.]+(,[\\w.]+)*")) // skip warnings
+                    modules.addAll(Arrays.asList(line.trim().split(",")));
+            }
+        } finally {
+            IOUtil.delete(tmp);
+        }
+        modules.add("java.base");
+        log.debug("Modules used by {}: {}", jars, modules);
+        return modules;
+    }
+
+    /**
+     * Links a runtime image.
+     *
+     * @param jmods   The {@code jmods} directory of a JDK for the image's platform
+     * @param modules The root modules
+     * @param output  The image directory; it is replaced if it exists
+     * @return {@code output}
+     */
+    public static Path link(Path jmods, Collection<String> modules, Path output) throws IOException {
+        final Set<String> mods = new TreeSet<>(modules);
+        for (final String m : SERVICE_MODULES) {
+            if (Files.exists(jmods.resolve(m + ".jmod")))
+                mods.add(m);
+        }
+
+        IOUtil.delete(output);
+        final StringBuilder sb = new StringBuilder();
+        for (final String m : mods)
+            sb.append(sb.length() > 0 ? "," : "").append(m);
+        log.debug("Linking runtime image {} with modules {}", output, sb);
+        run(Arrays.asList(getTool("jlink").toString(),
+                "--module-path", jmods.toAbsolutePath().toString(),
+                "--add-modules", sb.toString(),
+                "--strip-debug", "--no-header-files", "--no-man-pages", // classes are left uncompressed, so they load faster
+                "--output", output.toAbsolutePath().toString()));
+        return output;
+    }
+
+    private static Path linkOrCopy(Path file, Path link) throws IOException {
+        try {
+            return Files.createSymbolicLink(link, file.toAbsolutePath());
+        } catch (IOException | UnsupportedOperationException e) {
+            IOUtil.copy(file, link);
+            return link;
+        }
+    }
+
+    private static Path getJdkHome() {
+        final Path home = Paths.get(System.getProperty("java.home"));
+        return home.getFileName().toString().equals("jre") ? home.getParent() : home;
+    }
+
+    private static Path getTool(String name) throws IOException {
+        final Path bin = getJdkHome().resolve("bin");
+        for (final String n : new String[]{name, name + ".exe"}) {
+            if (Files.isRegularFile(bin.resolve(n)))
+                return bin.resolve(n);
+        }
+        throw new IOException("Linking a runtime image requires the " + name + " tool of JDK 16 or later, not found in " + bin);
+    }
+
+    private static List<String> run(List<String> command) throws IOException {
+        log.debug("Running {}", command);
+        final Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        final List<String> output = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset()))) {
+            for (String line; (line = r.readLine()) != null;)
+                output.add(line);
+        }
+        final int exit;
+        try {
+            exit = p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + command.get(0), e);
+        }
+        if (exit != 0)
+            throw new IOException(Paths.get(command.get(0)).getFileName() + " failed with exit code " + exit + ": " + output);
+        return output;
+    }
+}
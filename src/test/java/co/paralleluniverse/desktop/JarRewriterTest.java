@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014-2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.desktop;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class JarRewriterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PREFIX = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private Path added;
+
+    @Before
+    public void setUp() throws IOException {
+        added = Files.write(tmp.newFile("added.jar").toPath(), bytes("stored"));
+    }
+
+    @Test
+    public void testRewriteCopiesEntries() throws Exception {
+        final Map<String, byte[]> contents = contents(20);
+        final Path in = createJar(tmp.newFile("in.jar").toPath(), contents);
+
+        final Path out = rewrite(in).write(tmp.newFile("out.jar").toPath());
+
+        contents.put("added.txt", bytes("added"));
+        contents.put("lib/added.jar", bytes("stored"));
+        contents.put("entry-3", bytes("replaced"));
+        assertJar(out, contents, 0);
+        assertManifest(out);
+    }
+
+    @Test
+    public void testRewriteShellPrefixedJar() throws Exception {
+        final Map<String, byte[]> contents = contents(20);
+        final Path jar = createJar(tmp.newFile("in.jar").toPath(), contents);
+        final Path in = tmp.newFile("in.sh").toPath();
+        try (OutputStream os = Files.newOutputStream(in)) {
+            os.write(bytes(PREFIX));
+            Files.copy(jar, os);
+        }
+
+        final Path out = rewrite(in).setJarPrefix(PREFIX).write(tmp.newFile("out.sh").toPath());
+
+        contents.put("added.txt", bytes("added"));
+        contents.put("lib/added.jar", bytes("stored"));
+        contents.put("entry-3", bytes("replaced"));
+        assertEquals(PREFIX, new String(Arrays.copyOf(Files.readAllBytes(out), PREFIX.length()), UTF8));
+        assertJar(out, contents, PREFIX.length());
+        assertManifest(out);
+    }
+
+    @Test
+    public void testRewriteZip64EntryCount() throws Exception {
+        final Map<String, byte[]> contents = contents(0xffff + 100); // the input's entry count needs a Zip64 end record
+        final Path in = createJar(tmp.newFile("in.jar").toPath(), contents);
+
+        final Path out = rewrite(in).write(tmp.newFile("out.jar").toPath());
+
+        contents.put("added.txt", bytes("added"));
+        contents.put("lib/added.jar", bytes("stored"));
+        contents.put("entry-3", bytes("replaced"));
+        assertJar(out, contents, 0);
+        assertManifest(out);
+    }
+
+    @Test
+    public void testRecompressedOutputIndependentOfParallelism() throws Exception {
+        final Path in = createJar(tmp.newFile("in.jar").toPath(), contents(0xffff + 100));
+
+        final Path serial = rewrite(in).setParallelism(1).write(tmp.newFile("serial.jar").toPath());
+        final Path parallel = rewrite(in).setParallelism(4).write(tmp.newFile("parallel.jar").toPath());
+
+        assertArrayEquals(Files.readAllBytes(serial), Files.readAllBytes(parallel));
+    }
+
+    private JarRewriter rewrite(Path in) throws IOException {
+        return new JarRewriter(in)
+                .setListAttribute("Class-Path", Arrays.asList("a.jar", "b.jar"))
+                .removeAttribute("Removed")
+                .addEntry("added.txt", new ByteArrayInputStream(bytes("added")))
+                .addEntry("entry-3", new ByteArrayInputStream(bytes("replaced")))
+                .addEntry("lib/added.jar", added);
+    }
+
+    private static void assertManifest(Path jar) throws IOException {
+        try (JarFile jf = new JarFile(jar.toFile())) {
+            final Attributes attrs = jf.getManifest().getMainAttributes();
+            assertEquals("Test", attrs.getValue(Attributes.Name.MAIN_CLASS));
+            assertEquals("a.jar b.jar", attrs.getValue("Class-Path"));
+            assertNull(attrs.getValue("Removed"));
+        }
+    }
+
+    /**
+     * Checks the entries, and their CRCs, both through the central directory and by reading the local headers in order.
+     */
+    private static void assertJar(Path jar, Map<String, byte[]> contents, int prefixLength) throws IOException {
+        try (JarFile jf = new JarFile(jar.toFile())) {
+            int count = 0;
+            for (final Enumeration<JarEntry> es = jf.entries(); es.hasMoreElements();) {
+                final JarEntry e = es.nextElement();
+                if (e.getName().equals(JarFile.MANIFEST_NAME))
+                    continue;
+                assertTrue(e.getName(), contents.containsKey(e.getName()));
+                final byte[] content;
+                try (InputStream is = jf.getInputStream(e)) {
+                    content = IOUtil.readAll(is, -1);
+                }
+                assertArrayEquals(e.getName(), contents.get(e.getName()), content);
+                assertEquals(e.getName(), crc(content), e.getCrc());
+                count++;
+            }
+            assertEquals(contents.size(), count);
+        }
+
+        try (InputStream is = Files.newInputStream(jar)) {
+            assertEquals(prefixLength, is.skip(prefixLength));
+            final ZipInputStream zis = new ZipInputStream(is);
+            assertEquals(JarFile.MANIFEST_NAME, zis.getNextEntry().getName());
+            int count = 0;
+            for (ZipEntry e; (e = zis.getNextEntry()) != null;) {
+                final byte[] content = IOUtil.readAll(zis, -1); // checks the CRC
+                assertArrayEquals(e.getName(), contents.get(e.getName()), content);
+                count++;
+            }
+            assertEquals(contents.size(), count);
+        }
+    }
+
+    private static Path createJar(Path jar, Map<String, byte[]> contents) throws IOException {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "Test");
+        manifest.getMainAttributes().putValue("Removed", "true");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            int i = 0;
+            for (final Map.Entry<String, byte[]> e : contents.entrySet()) { // half the entries are stored
+                final JarEntry entry = new JarEntry(e.getKey());
+                if (i++ % 2 == 0) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(e.getValue().length);
+                    entry.setCrc(crc(e.getValue()));
+                }
+                jos.putNextEntry(entry);
+                jos.write(e.getValue());
+                jos.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    // the content is half random and half repetitive
+    private static Map<String, byte[]> contents(int count) {
+        final Random random = new Random(count);
+        final Map<String, byte[]> contents = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            final byte[] content = new byte[random.nextInt(200)];
+            random.nextBytes(content);
+            Arrays.fill(content, content.length / 2, content.length, (byte) 'x');
+            contents.put("entry-" + i, content);
+        }
+        return contents;
+    }
+
+    private static long crc(byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+}